@@ -1,7 +1,72 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 
 // Custom ArrayList implementation
 class MyArrayList<T> {
+    private static final int INSERTION_SORT_RUN = 32;
+    // Growth across every list, reported by the metrics as resize gauges
+    private static final LongAdder RESIZES = new LongAdder();
+    private static final LongAdder COPIED_ELEMENTS = new LongAdder();
+
     private Object[] array;
     private int size;
 
@@ -11,6 +76,13 @@ class MyArrayList<T> {
         size = 0;
     }
 
+    // Create a copy of another list
+    public MyArrayList(MyArrayList<? extends T> other) {
+        array = new Object[Math.max(10, other.size)];
+        System.arraycopy(other.array, 0, array, 0, other.size);
+        size = other.size;
+    }
+
     // Add an element to the end
     public void add(T element) {
         // Check if we need to resize
@@ -49,265 +121,5660 @@ class MyArrayList<T> {
         return size == 0;
     }
 
-    // Resize the array
-    private void resize() {
-        Object[] newArray = new Object[array.length * 2];
+    // Remove every element
+    public void clear() {
         for (int i = 0; i < size; i++) {
-            newArray[i] = array[i];
+            array[i] = null;
         }
-        array = newArray;
+        size = 0;
     }
-}
-
-// Custom Queue implementation
-class MyQueue<T> {
-    private Node<T> front;
-    private Node<T> rear;
 
-    private static class Node<T> {
-        T data;
-        Node<T> next;
+    // Replace the contents with those of another list
+    public void copyFrom(MyArrayList<? extends T> other) {
+        if (array.length < other.size) {
+            array = new Object[other.size];
+        }
+        System.arraycopy(other.array, 0, array, 0, other.size);
+        for (int i = other.size; i < size; i++) {
+            array[i] = null;
+        }
+        size = other.size;
+    }
 
-        Node(T data) {
-            this.data = data;
-            this.next = null;
+    // Sort with a comparator (stable bottom-up merge sort, O(n log n))
+    public void sort(Comparator<? super T> comparator) {
+        if (size < 2) {
+            return;
         }
+        sortRange(array, new Object[size], 0, size, comparator);
     }
 
-    public MyQueue() {
-        front = null;
-        rear = null;
+    // Sort on a fork/join pool: halves are sorted in parallel down to the cutoff, then merged.
+    // Both sorts are stable, so the result is the same as sort's.
+    public void parallelSort(Comparator<? super T> comparator, ForkJoinPool pool, int cutoff) {
+        if (size <= cutoff) {
+            sort(comparator);
+            return;
+        }
+        pool.invoke(new SortTask<>(array, new Object[size], 0, size, comparator, cutoff));
     }
 
-    // Add to the end of the queue
-    public void enqueue(T item) {
-        Node<T> newNode = new Node<>(item);
+    // Sort one half of the range on each side, merging them once both are done
+    private static class SortTask<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-        if (isEmpty()) {
-            front = newNode;
-            rear = newNode;
-        } else {
-            rear.next = newNode;
-            rear = newNode;
+        private final Object[] array;
+        private final Object[] buffer;
+        private final int lo;
+        private final int hi;
+        private final Comparator<? super T> comparator;
+        private final int cutoff;
+
+        SortTask(Object[] array, Object[] buffer, int lo, int hi, Comparator<? super T> comparator, int cutoff) {
+            this.array = array;
+            this.buffer = buffer;
+            this.lo = lo;
+            this.hi = hi;
+            this.comparator = comparator;
+            this.cutoff = cutoff;
         }
-    }
 
-    // Remove from the front of the queue
-    public T dequeue() {
-        if (isEmpty()) {
-            throw new RuntimeException("Queue is empty");
+        @Override
+        protected void compute() {
+            if (hi - lo <= cutoff) {
+                sortRange(array, buffer, lo, hi, comparator);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new SortTask<>(array, buffer, lo, mid, comparator, cutoff),
+                    new SortTask<>(array, buffer, mid, hi, comparator, cutoff));
+            merge(array, buffer, lo, mid, hi, comparator);
+            System.arraycopy(buffer, lo, array, lo, hi - lo);
         }
+    }
 
-        T item = front.data;
-        front = front.next;
+    // Sort array[lo, hi) in place, using buffer[lo, hi) as scratch space
+    @SuppressWarnings("unchecked")
+    private static <T> void sortRange(Object[] array, Object[] buffer, int lo, int hi,
+                                      Comparator<? super T> comparator) {
+        // Insertion sort short runs first, they are cheap and already merged in cache
+        for (int start = lo; start < hi; start += INSERTION_SORT_RUN) {
+            int end = Math.min(start + INSERTION_SORT_RUN, hi);
+            for (int i = start + 1; i < end; i++) {
+                Object current = array[i];
+                int j = i - 1;
+                while (j >= start && comparator.compare((T) array[j], (T) current) > 0) {
+                    array[j + 1] = array[j];
+                    j--;
+                }
+                array[j + 1] = current;
+            }
+        }
 
-        if (front == null) {
-            rear = null;
+        // Merge runs of doubling width, ping-ponging between the two buffers
+        Object[] src = array;
+        Object[] dst = buffer;
+        for (int width = INSERTION_SORT_RUN; width < hi - lo; width *= 2) {
+            for (int start = lo; start < hi; start += 2 * width) {
+                int mid = Math.min(start + width, hi);
+                int end = Math.min(start + 2 * width, hi);
+                merge(src, dst, start, mid, end, comparator);
+            }
+            Object[] temp = src;
+            src = dst;
+            dst = temp;
         }
 
-        return item;
+        if (src != array) {
+            System.arraycopy(src, lo, array, lo, hi - lo);
+        }
     }
 
-    // Check if queue is empty
-    public boolean isEmpty() {
-        return front == null;
+    // Sort by a primitive int key (stable LSD radix sort)
+    public void sortByIntKey(ToIntFunction<? super T> keyExtractor) {
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            @SuppressWarnings("unchecked")
+            T element = (T) array[i];
+            // Flip the sign bit so negative keys order before positive ones
+            keys[i] = (keyExtractor.applyAsInt(element) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+        }
+        radixSort(keys, 4);
     }
-}
 
-// Custom Stack implementation
-class MyStack<T> {
-    private Node<T> top;
+    // Sort by a primitive long key (stable LSD radix sort)
+    public void sortByLongKey(ToLongFunction<? super T> keyExtractor) {
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            @SuppressWarnings("unchecked")
+            T element = (T) array[i];
+            // Flip the sign bit so negative keys order before positive ones
+            keys[i] = keyExtractor.applyAsLong(element) ^ Long.MIN_VALUE;
+        }
+        radixSort(keys, 8);
+    }
 
-    private static class Node<T> {
-        T data;
-        Node<T> next;
+    // Merge src[lo, mid) and src[mid, hi) into dst[lo, hi)
+    @SuppressWarnings("unchecked")
+    private static <T> void merge(Object[] src, Object[] dst, int lo, int mid, int hi,
+                                  Comparator<? super T> comparator) {
+        // Already in order (common for presorted input) - just copy
+        if (mid >= hi || comparator.compare((T) src[mid - 1], (T) src[mid]) <= 0) {
+            System.arraycopy(src, lo, dst, lo, hi - lo);
+            return;
+        }
 
-        Node(T data) {
-            this.data = data;
-            this.next = null;
+        int i = lo;
+        int j = mid;
+        for (int k = lo; k < hi; k++) {
+            // Take from the left run on ties to keep the sort stable
+            if (j >= hi || (i < mid && comparator.compare((T) src[i], (T) src[j]) <= 0)) {
+                dst[k] = src[i++];
+            } else {
+                dst[k] = src[j++];
+            }
         }
     }
 
-    public MyStack() {
-        top = null;
-    }
+    // Sort elements by unsigned keys, one byte per pass (least significant first)
+    private void radixSort(long[] keys, int passes) {
+        Object[] src = array;
+        Object[] dst = new Object[size];
+        long[] srcKeys = keys;
+        long[] dstKeys = new long[size];
+        int[] count = new int[257];
 
-    // Push item onto stack
-    public void push(T item) {
-        Node<T> newNode = new Node<>(item);
-        newNode.next = top;
-        top = newNode;
+        for (int pass = 0; pass < passes; pass++) {
+            int shift = pass * 8;
+
+            for (int d = 0; d < count.length; d++) {
+                count[d] = 0;
+            }
+            for (int i = 0; i < size; i++) {
+                count[(int) (srcKeys[i] >>> shift & 0xFF) + 1]++;
+            }
+
+            // Skip the pass if every key has the same digit here
+            if (size == 0 || count[(int) (srcKeys[0] >>> shift & 0xFF) + 1] == size) {
+                continue;
+            }
+
+            for (int d = 1; d < count.length; d++) {
+                count[d] += count[d - 1];
+            }
+            for (int i = 0; i < size; i++) {
+                int pos = count[(int) (srcKeys[i] >>> shift & 0xFF)]++;
+                dst[pos] = src[i];
+                dstKeys[pos] = srcKeys[i];
+            }
+
+            Object[] temp = src;
+            src = dst;
+            dst = temp;
+            long[] tempKeys = srcKeys;
+            srcKeys = dstKeys;
+            dstKeys = tempKeys;
+        }
+
+        if (src != array) {
+            System.arraycopy(src, 0, array, 0, size);
+        }
     }
 
-    // Pop item from stack
-    public T pop() {
-        if (isEmpty()) {
-            throw new RuntimeException("Stack is empty");
+    // Resize the array
+    private void resize() {
+        Object[] newArray = new Object[array.length * 2];
+        System.arraycopy(array, 0, newArray, 0, size);
+        array = newArray;
+        if (Metrics.ENABLED) {
+            RESIZES.increment();
+            COPIED_ELEMENTS.add(size);
         }
+    }
 
-        T item = top.data;
-        top = top.next;
-        return item;
+    // Number of times any list has grown its backing array
+    static long getResizeCount() {
+        return RESIZES.sum();
     }
 
-    // Check if stack is empty
-    public boolean isEmpty() {
-        return top == null;
+    // Elements copied by those resizes
+    static long getCopiedElements() {
+        return COPIED_ELEMENTS.sum();
     }
 }
 
-// Book class
-class Book {
-    private final int id;
-    private final String title;
-    private final String author;
-    private final double price;
+// Custom hash map with primitive int keys (open addressing, linear probing)
+class MyIntHashMap<V> {
+    private int[] keys;
+    private Object[] values; // null marks an empty slot
+    private int size;
+    private int mask;
 
-    public Book(int id, String title, String author, double price) {
-        this.id = id;
-        this.title = title;
-        this.author = author;
-        this.price = price;
+    public MyIntHashMap() {
+        // Start with capacity of 16 (always a power of two)
+        keys = new int[16];
+        values = new Object[16];
+        mask = 15;
+        size = 0;
     }
 
-    public int getId() {
-        return id;
-    }
+    // Add or replace the value for a key, returns the previous value (or null)
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value cannot be null");
+        }
 
-    public String getTitle() {
-        return title;
-    }
+        // Keep the table at most half full so probe chains stay short
+        if ((size + 1) * 2 > values.length) {
+            resize();
+        }
 
-    public String getAuthor() {
-        return author;
+        int slot = slotOf(key);
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                V old = (V) values[slot];
+                values[slot] = value;
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        return null;
     }
 
-    public double getPrice() {
-        return price;
+    // Get the value for a key, or null if the key is not present
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = slotOf(key);
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                return (V) values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
     }
 
-    @Override
-    public String toString() {
-        return "ID: " + id + " | Title: " + title + " | Author: " + author + " | Price: $" + price;
+    // Check if a key is present
+    public boolean containsKey(int key) {
+        return get(key) != null;
     }
-}
 
-// Order class
-class Order {
-    private final int id;
-    private final String customerName;
-    private final String address;
-    private final MyArrayList<OrderItem> items;
-    private String status;
+    // Remove a key, returns the removed value (or null)
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int slot = slotOf(key);
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                V old = (V) values[slot];
 
-    public Order(int id, String customerName, String address) {
-        this.id = id;
-        this.customerName = customerName;
-        this.address = address;
-        this.items = new MyArrayList<>();
-        this.status = "Pending";
+                // Shift later entries of the probe chain back into the hole so lookups still reach them
+                int hole = slot;
+                int next = (slot + 1) & mask;
+                while (values[next] != null) {
+                    int home = slotOf(keys[next]);
+                    if (((next - home) & mask) >= ((next - hole) & mask)) {
+                        keys[hole] = keys[next];
+                        values[hole] = values[next];
+                        hole = next;
+                    }
+                    next = (next + 1) & mask;
+                }
+                values[hole] = null;
+                size--;
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
     }
 
-    public int getId() {
-        return id;
+    // Get number of entries
+    public int size() {
+        return size;
     }
 
-    public String getCustomerName() {
-        return customerName;
+    // Check if empty
+    public boolean isEmpty() {
+        return size == 0;
     }
 
-    public String getAddress() {
-        return address;
+    // Remove every entry
+    public void clear() {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = null;
+        }
+        size = 0;
     }
 
-    public String getStatus() {
-        return status;
+    // Spread the key bits so sequential IDs don't cluster
+    private int slotOf(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
     }
 
-    public void setStatus(String status) {
-        this.status = status;
+    // Double the table and re-insert every entry
+    private void resize() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        mask = values.length - 1;
+
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = slotOf(oldKeys[i]);
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
     }
+}
 
-    public MyArrayList<OrderItem> getItems() {
-        return items;
+// Custom growable list of primitive ints (no boxing)
+class MyIntList {
+    private int[] array;
+    private int size;
+
+    public MyIntList() {
+        // Start with capacity of 4, most posting lists are short
+        array = new int[4];
+        size = 0;
     }
 
-    public void addBook(Book book, int quantity) {
-        items.add(new OrderItem(book, quantity));
+    // Add a value to the end
+    public void add(int value) {
+        if (size == array.length) {
+            int[] newArray = new int[array.length * 2];
+            System.arraycopy(array, 0, newArray, 0, size);
+            array = newArray;
+        }
+        array[size] = value;
+        size++;
     }
 
-    public double calculateTotal() {
-        double total = 0;
-        for (int i = 0; i < items.size(); i++) {
-            OrderItem item = items.get(i);
-            total += item.getBook().getPrice() * item.getQuantity();
+    // Get value at index
+    public int get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
         }
-        return total;
+        return array[index];
     }
-}
 
-// OrderItem class
-class OrderItem {
-    private final Book book;
-    private final int quantity;
+    // Append every value of another list
+    public void addAll(MyIntList other) {
+        if (size + other.size > array.length) {
+            int[] newArray = new int[Math.max(array.length * 2, size + other.size)];
+            System.arraycopy(array, 0, newArray, 0, size);
+            array = newArray;
+        }
+        System.arraycopy(other.array, 0, array, size, other.size);
+        size += other.size;
+    }
 
-    public OrderItem(Book book, int quantity) {
-        this.book = book;
-        this.quantity = quantity;
+    // Replace the value at index
+    public void set(int index, int value) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        array[index] = value;
     }
 
-    public Book getBook() {
-        return book;
+    // Remove every value and release the array
+    public void clear() {
+        array = new int[4];
+        size = 0;
     }
 
-    public int getQuantity() {
-        return quantity;
+    // Get the last value (list must not be empty)
+    public int last() {
+        return get(size - 1);
     }
-}
 
+    // Remove and return the last value (list must not be empty)
+    public int removeLast() {
+        int value = last();
+        size--;
+        return value;
+    }
 
-// BookstoreSystem to handle the menu and operations
-class BookstoreSystem {
-    private final Scanner input = new Scanner(System.in);
-    private final MyArrayList<Book> bookList = new MyArrayList<>();
-    private final MyQueue<Order> orderQueue = new MyQueue<>();
-    private final MyStack<Order> processedOrders = new MyStack<>();
+    // Get size
+    public int size() {
+        return size;
+    }
 
-    // Constructor with some sample data
-    public BookstoreSystem() {
-        // Add some initial books
-        bookList.add(new Book(101, "Java Programming", "John Smith", 29.99));
-        bookList.add(new Book(102, "Data Structures", "Jane Doe", 34.99));
-        bookList.add(new Book(103, "Algorithms", "Alan Turing", 24.99));
-        bookList.add(new Book(104, "Database Design", "Oracle Team", 39.99));
-        bookList.add(new Book(105, "Web Development", "Tim Lee", 27.99));
+    // Check if empty
+    public boolean isEmpty() {
+        return size == 0;
     }
 
-    // Main menu method
-    public void runMenu() {
-        int choice = 0;
+    // Intersect two ascending lists, galloping through the longer one
+    public static MyIntList intersect(MyIntList small, MyIntList large) {
+        if (small.size > large.size) {
+            MyIntList temp = small;
+            small = large;
+            large = temp;
+        }
 
-        do {
-            System.out.println("\n===== ONLINE BOOKSTORE SYSTEM =====");
-            System.out.println("1. Display all books");
-            System.out.println("2. Add a new book");
-            System.out.println("3. Search for a book");
-            System.out.println("4. Sort books");
-            System.out.println("5. Place an order");
-            System.out.println("6. Process next order");
-            System.out.println("7. Display order queue");
-            System.out.println("8. Display processed orders");
-            System.out.println("9. Exit");
-            System.out.print("Enter your choice: ");
+        MyIntList result = new MyIntList();
+        int from = 0;
+        for (int i = 0; i < small.size && from < large.size; i++) {
+            int value = small.array[i];
 
-            try {
-                choice = Integer.parseInt(input.nextLine());
-            } catch (NumberFormatException e) {
-                System.out.println("Please enter a valid number!");
-                continue;
+            // Exponential search for the first position >= value
+            int step = 1;
+            int hi = from;
+            while (hi < large.size && large.array[hi] < value) {
+                from = hi + 1;
+                hi += step;
+                step *= 2;
+            }
+            hi = Math.min(hi, large.size);
+            while (from < hi) {
+                int mid = (from + hi) >>> 1;
+                if (large.array[mid] < value) {
+                    from = mid + 1;
+                } else {
+                    hi = mid;
+                }
             }
 
-            switch (choice) {
+            if (from < large.size && large.array[from] == value) {
+                result.add(value);
+                from++;
+            }
+        }
+        return result;
+    }
+}
+
+// Custom hash map with object keys (separate chaining)
+class MyHashMap<K, V> {
+    private Node<K, V>[] buckets;
+    private int size;
+
+    private static class Node<K, V> {
+        final K key;
+        final int hash;
+        V value;
+        Node<K, V> next;
+
+        Node(K key, int hash, V value, Node<K, V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MyHashMap() {
+        // Start with 16 buckets (always a power of two)
+        buckets = (Node<K, V>[]) new Node[16];
+        size = 0;
+    }
+
+    // Add or replace the value for a key, returns the previous value (or null)
+    public V put(K key, V value) {
+        int hash = hash(key);
+        int index = hash & (buckets.length - 1);
+
+        for (Node<K, V> node = buckets[index]; node != null; node = node.next) {
+            if (node.hash == hash && node.key.equals(key)) {
+                V old = node.value;
+                node.value = value;
+                return old;
+            }
+        }
+
+        buckets[index] = new Node<>(key, hash, value, buckets[index]);
+        size++;
+
+        // Keep chains short with a load factor of 0.75
+        if (size * 4 > buckets.length * 3) {
+            resize();
+        }
+        return null;
+    }
+
+    // Get the value for a key, or null if the key is not present
+    public V get(K key) {
+        int hash = hash(key);
+        for (Node<K, V> node = buckets[hash & (buckets.length - 1)]; node != null; node = node.next) {
+            if (node.hash == hash && node.key.equals(key)) {
+                return node.value;
+            }
+        }
+        return null;
+    }
+
+    // Check if a key is present
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    // Remove a key, returns the removed value (or null)
+    public V remove(K key) {
+        int hash = hash(key);
+        int index = hash & (buckets.length - 1);
+
+        Node<K, V> previous = null;
+        for (Node<K, V> node = buckets[index]; node != null; node = node.next) {
+            if (node.hash == hash && node.key.equals(key)) {
+                if (previous == null) {
+                    buckets[index] = node.next;
+                } else {
+                    previous.next = node.next;
+                }
+                size--;
+                return node.value;
+            }
+            previous = node;
+        }
+        return null;
+    }
+
+    // Get number of entries
+    public int size() {
+        return size;
+    }
+
+    // Check if empty
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Spread the high bits of the hash code into the bucket index
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // Double the bucket array and relink every node
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void resize() {
+        Node<K, V>[] oldBuckets = buckets;
+        buckets = (Node<K, V>[]) new Node[oldBuckets.length * 2];
+
+        for (Node<K, V> head : oldBuckets) {
+            Node<K, V> node = head;
+            while (node != null) {
+                Node<K, V> next = node.next;
+                int index = node.hash & (buckets.length - 1);
+                node.next = buckets[index];
+                buckets[index] = node;
+                node = next;
+            }
+        }
+    }
+}
+
+// Common queue operations, shared by the linked and array-backed queues
+interface QueueADT<T> extends Iterable<T> {
+    // Add to the end of the queue
+    void enqueue(T item);
+
+    // Remove from the front of the queue
+    T dequeue();
+
+    // Check if queue is empty
+    boolean isEmpty();
+
+    // Get number of items
+    int size();
+}
+
+// Queue operations for queues shared between threads, adding non-blocking and blocking removal
+interface BlockingQueueADT<T> extends QueueADT<T> {
+    // Remove from the front of the queue, or return null if it is empty
+    T poll();
+
+    // Remove from the front, waiting up to the timeout for an item (null if none arrived)
+    T poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    // Remove from the front, waiting as long as needed for an item
+    T take() throws InterruptedException;
+}
+
+// Common stack operations, shared by the linked and array-backed stacks
+interface StackADT<T> extends Iterable<T> {
+    // Push item onto stack
+    void push(T item);
+
+    // Push every item of a list in order (the last one ends up on top)
+    void pushAll(MyArrayList<? extends T> items);
+
+    // Pop item from stack
+    T pop();
+
+    // Check if stack is empty
+    boolean isEmpty();
+
+    // Get number of items
+    int size();
+}
+
+// Custom Queue implementation
+class MyQueue<T> implements QueueADT<T> {
+    private Node<T> front;
+    private Node<T> rear;
+    private int size;
+
+    private static class Node<T> {
+        T data;
+        Node<T> next;
+
+        Node(T data) {
+            this.data = data;
+            this.next = null;
+        }
+    }
+
+    public MyQueue() {
+        front = null;
+        rear = null;
+        size = 0;
+    }
+
+    // Add to the end of the queue
+    @Override
+    public void enqueue(T item) {
+        Node<T> newNode = new Node<>(item);
+
+        if (isEmpty()) {
+            front = newNode;
+            rear = newNode;
+        } else {
+            rear.next = newNode;
+            rear = newNode;
+        }
+        size++;
+    }
+
+    // Remove from the front of the queue
+    @Override
+    public T dequeue() {
+        if (isEmpty()) {
+            throw new RuntimeException("Queue is empty");
+        }
+
+        T item = front.data;
+        front = front.next;
+
+        if (front == null) {
+            rear = null;
+        }
+
+        size--;
+        return item;
+    }
+
+    // Check if queue is empty
+    @Override
+    public boolean isEmpty() {
+        return front == null;
+    }
+
+    // Get number of items
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Walk the queue front to back without removing anything
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private Node<T> node = front;
+
+            @Override
+            public boolean hasNext() {
+                return node != null;
+            }
+
+            @Override
+            public T next() {
+                if (node == null) {
+                    throw new NoSuchElementException();
+                }
+                T item = node.data;
+                node = node.next;
+                return item;
+            }
+        };
+    }
+}
+
+// Custom Queue implementation backed by a growable circular array
+class MyArrayQueue<T> implements QueueADT<T> {
+    private static final int MIN_CAPACITY = 16;
+
+    private Object[] array;
+    private int front; // index of the first item
+    private int size;
+
+    public MyArrayQueue() {
+        // Start with capacity of 16 (always a power of two so wrapping is a mask)
+        array = new Object[MIN_CAPACITY];
+        front = 0;
+        size = 0;
+    }
+
+    // Add to the end of the queue
+    @Override
+    public void enqueue(T item) {
+        if (size == array.length) {
+            resize(array.length * 2);
+        }
+        array[(front + size) & (array.length - 1)] = item;
+        size++;
+    }
+
+    // Remove from the front of the queue
+    @Override
+    @SuppressWarnings("unchecked")
+    public T dequeue() {
+        if (isEmpty()) {
+            throw new RuntimeException("Queue is empty");
+        }
+
+        T item = (T) array[front];
+        array[front] = null;
+        front = (front + 1) & (array.length - 1);
+        size--;
+
+        // Shrink once the queue has drained to a quarter, so a past burst doesn't pin memory
+        if (array.length > MIN_CAPACITY && size <= array.length / 4) {
+            resize(array.length / 2);
+        }
+        return item;
+    }
+
+    // Check if queue is empty
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Get number of items
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Walk the queue front to back without removing anything
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                return (T) array[(front + index++) & (array.length - 1)];
+            }
+        };
+    }
+
+    // Copy the items to a new array, unwrapping them so the front is at index 0
+    private void resize(int capacity) {
+        Object[] newArray = new Object[capacity];
+        int firstPart = Math.min(size, array.length - front);
+        System.arraycopy(array, front, newArray, 0, firstPart);
+        System.arraycopy(array, 0, newArray, firstPart, size - firstPart);
+        array = newArray;
+        front = 0;
+    }
+}
+
+// Lock-free queue for many producer and consumer threads (Michael-Scott algorithm)
+// A semaphore counts the linked items so consumers can block or time out without locking the queue.
+class MyConcurrentQueue<T> implements BlockingQueueADT<T> {
+    private final AtomicReference<Node<T>> head; // dummy node, the first item is head.next
+    private final AtomicReference<Node<T>> tail;
+    private final Semaphore available = new Semaphore(0);
+
+    private static class Node<T> {
+        @SuppressWarnings("rawtypes")
+        static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+        T data;
+        volatile Node<T> next;
+
+        Node(T data) {
+            this.data = data;
+            this.next = null;
+        }
+    }
+
+    public MyConcurrentQueue() {
+        Node<T> dummy = new Node<>(null);
+        head = new AtomicReference<>(dummy);
+        tail = new AtomicReference<>(dummy);
+    }
+
+    // Add to the end of the queue
+    @Override
+    public void enqueue(T item) {
+        if (item == null) {
+            throw new IllegalArgumentException("Item cannot be null");
+        }
+
+        Node<T> newNode = new Node<>(item);
+        while (true) {
+            Node<T> last = tail.get();
+            Node<T> next = last.next;
+
+            if (next == null) {
+                // Link after the last node, then try to swing the tail (others help if we don't)
+                if (Node.NEXT.compareAndSet(last, null, newNode)) {
+                    tail.compareAndSet(last, newNode);
+                    available.release();
+                    return;
+                }
+            } else {
+                // Tail is lagging behind - help move it forward
+                tail.compareAndSet(last, next);
+            }
+        }
+    }
+
+    // Remove from the front of the queue
+    @Override
+    public T dequeue() {
+        T item = poll();
+        if (item == null) {
+            throw new RuntimeException("Queue is empty");
+        }
+        return item;
+    }
+
+    // Remove from the front of the queue, or return null if it is empty
+    @Override
+    public T poll() {
+        return available.tryAcquire() ? removeFirst() : null;
+    }
+
+    // Remove from the front, waiting up to the timeout for an item (null if none arrived)
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return available.tryAcquire(timeout, unit) ? removeFirst() : null;
+    }
+
+    // Remove from the front, waiting as long as needed for an item
+    @Override
+    public T take() throws InterruptedException {
+        available.acquire();
+        return removeFirst();
+    }
+
+    // Check if queue is empty
+    @Override
+    public boolean isEmpty() {
+        return head.get().next == null;
+    }
+
+    // Get number of items (a snapshot, the queue may change right after)
+    @Override
+    public int size() {
+        return available.availablePermits();
+    }
+
+    // Walk the queue front to back without removing anything.
+    // Weakly consistent: items added or removed during the walk may or may not be seen.
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private Node<T> node = skipRemoved(head.get().next);
+
+            @Override
+            public boolean hasNext() {
+                return node != null;
+            }
+
+            @Override
+            public T next() {
+                if (node == null) {
+                    throw new NoSuchElementException();
+                }
+                T item = node.data;
+                node = skipRemoved(node.next);
+                return item;
+            }
+        };
+    }
+
+    // Unlink the first node - the caller holds a permit, so an item is guaranteed to be linked
+    @SuppressWarnings("unchecked")
+    private T removeFirst() {
+        while (true) {
+            Node<T> first = head.get();
+            Node<T> last = tail.get();
+            Node<T> next = first.next;
+
+            if (first == last) {
+                // Item is linked but the tail hasn't caught up yet
+                if (next != null) {
+                    tail.compareAndSet(last, next);
+                }
+            } else if (head.compareAndSet(first, next)) {
+                // next becomes the new dummy; only the winning thread reads its data
+                T item = next.data;
+                next.data = null;
+                return item;
+            }
+        }
+    }
+
+    // Skip nodes whose item has already been taken
+    private Node<T> skipRemoved(Node<T> node) {
+        while (node != null && node.data == null) {
+            node = node.next;
+        }
+        return node;
+    }
+}
+
+// Thread-safe binary min-heap ordered by a priority key computed once per item when it is added
+// Items with equal keys are served in arrival order, so a constant key gives a plain FIFO queue.
+class MyPriorityQueue<T> implements BlockingQueueADT<T> {
+    // Priority of an item given its arrival number (0, 1, 2, ...); smaller keys are served first
+    interface PriorityKey<T> {
+        long of(T item, long arrival);
+    }
+
+    private Object[] items;
+    private long[] keys;     // keys[i] belongs to items[i]
+    private long[] arrivals; // arrivals[i] belongs to items[i]
+    private int size;
+    private long nextArrival;
+    private PriorityKey<T> priorityKey;
+
+    public MyPriorityQueue(PriorityKey<T> priorityKey) {
+        this.items = new Object[16];
+        this.keys = new long[16];
+        this.arrivals = new long[16];
+        this.size = 0;
+        this.priorityKey = priorityKey;
+    }
+
+    // Add an item, it moves up the heap past every item with a larger key
+    @Override
+    public synchronized void enqueue(T item) {
+        if (item == null) {
+            throw new IllegalArgumentException("Item cannot be null");
+        }
+        if (size == items.length) {
+            int capacity = items.length * 2;
+            Object[] newItems = new Object[capacity];
+            System.arraycopy(items, 0, newItems, 0, size);
+            items = newItems;
+            long[] newKeys = new long[capacity];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            keys = newKeys;
+            long[] newArrivals = new long[capacity];
+            System.arraycopy(arrivals, 0, newArrivals, 0, size);
+            arrivals = newArrivals;
+        }
+
+        long arrival = nextArrival++;
+        items[size] = item;
+        keys[size] = priorityKey.of(item, arrival);
+        arrivals[size] = arrival;
+        siftUp(size);
+        size++;
+        notify();
+    }
+
+    // Remove the item with the smallest key
+    @Override
+    public T dequeue() {
+        T item = poll();
+        if (item == null) {
+            throw new RuntimeException("Queue is empty");
+        }
+        return item;
+    }
+
+    // Remove the item with the smallest key, or return null if the queue is empty
+    @Override
+    public synchronized T poll() {
+        return size == 0 ? null : removeTop();
+    }
+
+    // Remove the item with the smallest key, waiting up to the timeout for one (null if none arrived)
+    @Override
+    public synchronized T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (size == 0) {
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return removeTop();
+    }
+
+    // Remove the item with the smallest key, waiting as long as needed for one
+    @Override
+    public synchronized T take() throws InterruptedException {
+        while (size == 0) {
+            wait();
+        }
+        return removeTop();
+    }
+
+    // Check if queue is empty
+    @Override
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Get number of items
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    // Remove a specific item (matched by identity) from anywhere in the heap, returns false if it isn't queued
+    public synchronized boolean remove(T item) {
+        for (int i = 0; i < size; i++) {
+            if (items[i] == item) {
+                size--;
+                move(size, i);
+                items[size] = null;
+                if (i < size) {
+                    siftDown(i);
+                    siftUp(i);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Switch to a new key and rebuild the heap, queued items keep their arrival numbers
+    public synchronized void setPriorityKey(PriorityKey<T> priorityKey) {
+        this.priorityKey = priorityKey;
+        for (int i = 0; i < size; i++) {
+            keys[i] = priorityKey.of(item(i), arrivals[i]);
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    // Walk a snapshot of the queue in the order the items will be served
+    @Override
+    public Iterator<T> iterator() {
+        MyPriorityQueue<T> copy = new MyPriorityQueue<>(priorityKey);
+        synchronized (this) {
+            copy.items = items.clone();
+            copy.keys = keys.clone();
+            copy.arrivals = arrivals.clone();
+            copy.size = size;
+        }
+
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return copy.size > 0;
+            }
+
+            @Override
+            public T next() {
+                if (copy.size == 0) {
+                    throw new NoSuchElementException();
+                }
+                return copy.removeTop();
+            }
+        };
+    }
+
+    // Take the root, then move the last item to the root and let it sink
+    private T removeTop() {
+        T top = item(0);
+        size--;
+        move(size, 0);
+        items[size] = null;
+        if (size > 0) {
+            siftDown(0);
+        }
+        return top;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!less(index, parent)) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && less(left, smallest)) {
+                smallest = left;
+            }
+            if (right < size && less(right, smallest)) {
+                smallest = right;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    // Compare by key, then by arrival
+    private boolean less(int i, int j) {
+        return keys[i] < keys[j] || (keys[i] == keys[j] && arrivals[i] < arrivals[j]);
+    }
+
+    private void swap(int i, int j) {
+        Object item = items[i];
+        items[i] = items[j];
+        items[j] = item;
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        long arrival = arrivals[i];
+        arrivals[i] = arrivals[j];
+        arrivals[j] = arrival;
+    }
+
+    private void move(int from, int to) {
+        items[to] = items[from];
+        keys[to] = keys[from];
+        arrivals[to] = arrivals[from];
+    }
+
+    @SuppressWarnings("unchecked")
+    private T item(int index) {
+        return (T) items[index];
+    }
+}
+
+// Custom Stack implementation
+class MyStack<T> implements StackADT<T> {
+    private Node<T> top;
+    private int size;
+
+    private static class Node<T> {
+        T data;
+        Node<T> next;
+
+        Node(T data) {
+            this.data = data;
+            this.next = null;
+        }
+    }
+
+    public MyStack() {
+        top = null;
+        size = 0;
+    }
+
+    // Push item onto stack
+    @Override
+    public void push(T item) {
+        Node<T> newNode = new Node<>(item);
+        newNode.next = top;
+        top = newNode;
+        size++;
+    }
+
+    // Push every item of a list in order (the last one ends up on top)
+    @Override
+    public void pushAll(MyArrayList<? extends T> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+
+        // Link the new nodes among themselves first, then attach the chain in one step
+        Node<T> bottom = new Node<>(items.get(0));
+        Node<T> chainTop = bottom;
+        for (int i = 1; i < items.size(); i++) {
+            Node<T> newNode = new Node<>(items.get(i));
+            newNode.next = chainTop;
+            chainTop = newNode;
+        }
+        bottom.next = top;
+        top = chainTop;
+        size += items.size();
+    }
+
+    // Pop item from stack
+    @Override
+    public T pop() {
+        if (isEmpty()) {
+            throw new RuntimeException("Stack is empty");
+        }
+
+        T item = top.data;
+        top = top.next;
+        size--;
+        return item;
+    }
+
+    // Check if stack is empty
+    @Override
+    public boolean isEmpty() {
+        return top == null;
+    }
+
+    // Get number of items
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Walk the stack top to bottom without popping anything
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private Node<T> node = top;
+
+            @Override
+            public boolean hasNext() {
+                return node != null;
+            }
+
+            @Override
+            public T next() {
+                if (node == null) {
+                    throw new NoSuchElementException();
+                }
+                T item = node.data;
+                node = node.next;
+                return item;
+            }
+        };
+    }
+}
+
+// Custom Stack implementation backed by a growable array
+class MyArrayStack<T> implements StackADT<T> {
+    private static final int MIN_CAPACITY = 16;
+
+    private Object[] array;
+    private int size;
+
+    public MyArrayStack() {
+        // Start with capacity of 16
+        array = new Object[MIN_CAPACITY];
+        size = 0;
+    }
+
+    // Push item onto stack
+    @Override
+    public void push(T item) {
+        if (size == array.length) {
+            resize(array.length * 2);
+        }
+        array[size] = item;
+        size++;
+    }
+
+    // Push every item of a list in order (the last one ends up on top)
+    @Override
+    public void pushAll(MyArrayList<? extends T> items) {
+        int needed = size + items.size();
+        if (needed > array.length) {
+            resize(Math.max(array.length * 2, needed));
+        }
+        for (int i = 0; i < items.size(); i++) {
+            array[size + i] = items.get(i);
+        }
+        size = needed;
+    }
+
+    // Pop item from stack
+    @Override
+    @SuppressWarnings("unchecked")
+    public T pop() {
+        if (isEmpty()) {
+            throw new RuntimeException("Stack is empty");
+        }
+
+        size--;
+        T item = (T) array[size];
+        array[size] = null;
+
+        // Shrink once the stack has drained to a quarter, so a past burst doesn't pin memory
+        if (array.length > MIN_CAPACITY && size <= array.length / 4) {
+            resize(array.length / 2);
+        }
+        return item;
+    }
+
+    // Check if stack is empty
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Get number of items
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Walk the stack top to bottom without popping anything
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int index = size - 1;
+
+            @Override
+            public boolean hasNext() {
+                return index >= 0;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (index < 0) {
+                    throw new NoSuchElementException();
+                }
+                return (T) array[index--];
+            }
+        };
+    }
+
+    // Copy the items to a new array of the given capacity
+    private void resize(int capacity) {
+        Object[] newArray = new Object[capacity];
+        System.arraycopy(array, 0, newArray, 0, size);
+        array = newArray;
+    }
+}
+
+// Money helpers for amounts held as whole cents in a long
+// Cents add up exactly, unlike doubles, and are parsed and formatted without floating point.
+final class Money {
+    private Money() {
+    }
+
+    // Convert a dollar amount to the nearest cent
+    static long toCents(double dollars) {
+        return Math.round(dollars * 100);
+    }
+
+    // Parse a dollar amount with at most two decimals, such as "29.99", "30" or ".5"
+    static long parseCents(String text) {
+        String amount = text.trim();
+        int dot = amount.indexOf('.');
+        String whole = dot < 0 ? amount : amount.substring(0, dot);
+        String fraction = dot < 0 ? "" : amount.substring(dot + 1);
+        if ((whole.isEmpty() && fraction.isEmpty()) || fraction.length() > 2 ||
+                !isDigits(whole) || !isDigits(fraction)) {
+            throw new NumberFormatException("Invalid amount: " + text);
+        }
+
+        try {
+            long cents = whole.isEmpty() ? 0 : Math.multiplyExact(Long.parseLong(whole), 100L);
+            if (fraction.length() == 1) {
+                cents += (fraction.charAt(0) - '0') * 10;
+            } else if (fraction.length() == 2) {
+                cents += Integer.parseInt(fraction);
+            }
+            return cents;
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount is too large: " + text);
+        }
+    }
+
+    // Append cents as dollars with two decimals, e.g. 2999 -> "29.99"
+    static StringBuilder append(StringBuilder out, long cents) {
+        if (cents < 0) {
+            out.append('-');
+            cents = -cents;
+        }
+        long fraction = cents % 100;
+        out.append(cents / 100).append('.');
+        if (fraction < 10) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+
+    // Format cents as dollars with two decimals
+    static String format(long cents) {
+        return append(new StringBuilder(24), cents).toString();
+    }
+
+    private static boolean isDigits(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// Book class
+class Book {
+    private final int id;
+    private final String title;
+    private final String author;
+    private final long priceCents;
+
+    public Book(int id, String title, String author, double price) {
+        this(id, title, author, Money.toCents(price));
+    }
+
+    // Private so an int literal price can't pick this overload by accident, use ofCents instead
+    private Book(int id, String title, String author, long priceCents) {
+        this.id = id;
+        this.title = title;
+        this.author = author;
+        this.priceCents = priceCents;
+    }
+
+    // Create a book with an exact price in cents
+    public static Book ofCents(int id, String title, String author, long priceCents) {
+        return new Book(id, title, author, priceCents);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public double getPrice() {
+        return priceCents / 100.0;
+    }
+
+    public long getPriceCents() {
+        return priceCents;
+    }
+
+    // Append the display form of the book, without building an intermediate string
+    public StringBuilder appendTo(StringBuilder out) {
+        out.append("ID: ").append(id).append(" | Title: ").append(title)
+                .append(" | Author: ").append(author).append(" | Price: $");
+        return Money.append(out, priceCents);
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder(64)).toString();
+    }
+}
+
+// Order class
+class Order {
+    private final int id;
+    private final String customerName;
+    private final String address;
+    private final MyArrayList<OrderItem> items;
+    private volatile String status; // updated by fulfilment workers, read by the menu
+    private boolean express;
+    private long totalCents; // kept up to date by addBook
+    private final Inventory inventory; // reserves stock in addBook, null if stock isn't checked
+
+    public Order(int id, String customerName, String address) {
+        this(id, customerName, address, null);
+    }
+
+    public Order(int id, String customerName, String address, Inventory inventory) {
+        this.id = id;
+        this.customerName = customerName;
+        this.address = address;
+        this.items = new MyArrayList<>();
+        this.status = "Pending";
+        this.inventory = inventory;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getCustomerName() {
+        return customerName;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    // Move to a new status only if the order is still in the expected one (claims it against other threads)
+    public synchronized boolean compareAndSetStatus(String expected, String newStatus) {
+        if (!status.equals(expected)) {
+            return false;
+        }
+        status = newStatus;
+        return true;
+    }
+
+    public MyArrayList<OrderItem> getItems() {
+        return items;
+    }
+
+    public boolean isExpress() {
+        return express;
+    }
+
+    public void setExpress(boolean express) {
+        this.express = express;
+    }
+
+    // Number of copies across all items
+    public int getTotalQuantity() {
+        int quantity = 0;
+        for (int i = 0; i < items.size(); i++) {
+            quantity += items.get(i).getQuantity();
+        }
+        return quantity;
+    }
+
+    // Add a book, reserving the copies first; returns false if there aren't enough in stock
+    public boolean addBook(Book book, int quantity) {
+        int reservation = inventory != null ? inventory.reserve(book.getId(), quantity) : Inventory.UNTRACKED;
+        if (reservation == Inventory.OUT_OF_STOCK) {
+            return false;
+        }
+
+        OrderItem item = new OrderItem(book, quantity);
+        item.setReserved(reservation == Inventory.RESERVED);
+        items.add(item);
+        totalCents += item.getSubtotalCents();
+        return true;
+    }
+
+    // Exact total in cents, O(1)
+    public long getTotalCents() {
+        return totalCents;
+    }
+
+    // Total in dollars, O(1)
+    public double calculateTotal() {
+        return totalCents / 100.0;
+    }
+}
+
+// OrderItem class
+class OrderItem {
+    private final Book book;
+    private final int quantity;
+    private boolean reserved; // copies are set aside in the inventory
+
+    public OrderItem(Book book, int quantity) {
+        this.book = book;
+        this.quantity = quantity;
+    }
+
+    public Book getBook() {
+        return book;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    // Price of the book times the quantity, in cents
+    public long getSubtotalCents() {
+        return book.getPriceCents() * quantity;
+    }
+
+    public boolean isReserved() {
+        return reserved;
+    }
+
+    public void setReserved(boolean reserved) {
+        this.reserved = reserved;
+    }
+}
+
+// Stock levels per book ID, with copies reserved by placed orders until they are processed
+// Books are spread over STRIPES maps, each guarded by its own lock, so checkouts of different books
+// rarely wait for each other. A book without a stock entry is untracked and never runs out; it is
+// tracked from the first time copies are received.
+class Inventory {
+    static final int RESERVED = 0;     // copies set aside for the order
+    static final int UNTRACKED = 1;    // book has no stock entry, nothing set aside
+    static final int OUT_OF_STOCK = 2; // not enough copies available
+    private static final int STRIPES = 64; // power of two
+
+    private static class Stock {
+        long onHand;   // copies in the store, including reserved ones
+        long reserved; // copies promised to pending orders
+    }
+
+    // Appends a stock change to the order log, returns the sequence number to wait on
+    interface StockLog {
+        long append(int bookId, long copies) throws IOException;
+    }
+
+    private final Object[] locks = new Object[STRIPES];
+    private final MyIntHashMap<Stock>[] stripes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Inventory() {
+        stripes = (MyIntHashMap<Stock>[]) new MyIntHashMap[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+            stripes[i] = new MyIntHashMap<>();
+        }
+    }
+
+    // Add received copies of a book (negative to write copies off), tracking it from now on; returns the
+    // sequence number to wait on (0 without a log). The change is logged under the stripe lock that
+    // applies it, so the log holds a book's changes in the order they were made, and it is applied
+    // only once the append succeeded. A write-off can't take copies that pending orders reserved,
+    // so stock never has to be clamped and replaying the logged deltas gives the same level.
+    public long addStock(int bookId, long copies, StockLog log) throws IOException {
+        int s = stripe(bookId);
+        synchronized (locks[s]) {
+            Stock stock = stripes[s].get(bookId);
+            long available = stock != null ? stock.onHand - stock.reserved : 0;
+            if (copies < -available) {
+                throw new IllegalArgumentException("only " + available + " copies can be written off");
+            }
+            long lsn = log != null ? log.append(bookId, copies) : 0;
+            if (stock == null) {
+                stock = new Stock();
+                stripes[s].put(bookId, stock);
+            }
+            stock.onHand += copies;
+            return lsn;
+        }
+    }
+
+    // Put back a book's recovered stock level, tracking it from now on
+    public void restoreStock(int bookId, long onHand) {
+        int s = stripe(bookId);
+        synchronized (locks[s]) {
+            Stock stock = stripes[s].get(bookId);
+            if (stock == null) {
+                stock = new Stock();
+                stripes[s].put(bookId, stock);
+            }
+            // Only logs written while write-offs were still clamped can sum below zero
+            stock.onHand = Math.max(0, onHand);
+        }
+    }
+
+    // Copies in the store, or -1 if the book is untracked
+    public long getOnHand(int bookId) {
+        int s = stripe(bookId);
+        synchronized (locks[s]) {
+            Stock stock = stripes[s].get(bookId);
+            return stock != null ? stock.onHand : -1;
+        }
+    }
+
+    // Copies reserved by pending orders (0 if the book is untracked)
+    public long getReserved(int bookId) {
+        int s = stripe(bookId);
+        synchronized (locks[s]) {
+            Stock stock = stripes[s].get(bookId);
+            return stock != null ? stock.reserved : 0;
+        }
+    }
+
+    // Set copies aside for an order if enough are available, returns RESERVED, UNTRACKED or OUT_OF_STOCK
+    public int reserve(int bookId, int quantity) {
+        int s = stripe(bookId);
+        synchronized (locks[s]) {
+            Stock stock = stripes[s].get(bookId);
+            if (stock == null) {
+                return UNTRACKED;
+            }
+            if (stock.onHand - stock.reserved < quantity) {
+                return OUT_OF_STOCK;
+            }
+            stock.reserved += quantity;
+            return RESERVED;
+        }
+    }
+
+    // The order was processed: its reserved copies leave the store and their reservations end
+    // Items of books that were untracked when ordered never drew on the stock, so they leave it alone.
+    public void commit(Order order) {
+        MyArrayList<OrderItem> items = order.getItems();
+        for (int i = 0; i < items.size(); i++) {
+            OrderItem item = items.get(i);
+            if (!item.isReserved()) {
+                continue;
+            }
+            int s = stripe(item.getBook().getId());
+            synchronized (locks[s]) {
+                Stock stock = stripes[s].get(item.getBook().getId());
+                if (stock != null) {
+                    stock.onHand -= item.getQuantity();
+                    stock.reserved -= item.getQuantity();
+                }
+            }
+            item.setReserved(false);
+        }
+    }
+
+    // The order won't be processed: give its reserved copies back
+    public void release(Order order) {
+        MyArrayList<OrderItem> items = order.getItems();
+        for (int i = 0; i < items.size(); i++) {
+            OrderItem item = items.get(i);
+            if (!item.isReserved()) {
+                continue;
+            }
+            int s = stripe(item.getBook().getId());
+            synchronized (locks[s]) {
+                Stock stock = stripes[s].get(item.getBook().getId());
+                if (stock != null) {
+                    stock.reserved -= item.getQuantity();
+                }
+            }
+            item.setReserved(false);
+        }
+    }
+
+    // Reserve copies again, without checking availability, for the items of a recovered pending
+    // order that held a reservation when it was logged
+    public void restoreReservations(Order order) {
+        MyArrayList<OrderItem> items = order.getItems();
+        for (int i = 0; i < items.size(); i++) {
+            OrderItem item = items.get(i);
+            if (!item.isReserved()) {
+                continue;
+            }
+            int s = stripe(item.getBook().getId());
+            synchronized (locks[s]) {
+                Stock stock = stripes[s].get(item.getBook().getId());
+                if (stock != null) {
+                    stock.reserved += item.getQuantity();
+                } else {
+                    item.setReserved(false);
+                }
+            }
+        }
+    }
+
+    // Spread sequential IDs evenly over the stripes
+    private static int stripe(int bookId) {
+        int h = bookId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+}
+
+// Compact binary encoding of books and orders, straight to and from ByteBuffers
+// Ints are unsigned LEB128 varints (7 bits a byte, so an ID under 16384 takes two bytes), prices
+// are fixed-point cents as varints, strings are a varint byte length followed by UTF-8 encoded in
+// place, and order items refer to books by ID only. Records carry no version of their own: the
+// file headers and log record types that hold them state VERSION once. Orders written before items
+// recorded their reservation lack FLAG_RESERVATIONS and still decode, with every item reserved.
+final class RecordCodec {
+    static final int VERSION = 1;
+    private static final byte FLAG_EXPRESS = 1;
+    private static final byte FLAG_RESERVATIONS = 2; // each item ends with a byte, 1 if its copies were reserved
+
+    // Called for each item while walking an encoded order
+    interface ItemVisitor {
+        void item(int bookId, int quantity, boolean reserved);
+    }
+
+    private RecordCodec() {
+    }
+
+    // Book: id, price in cents, title, author
+    static int bookSize(Book book) {
+        return varIntSize(book.getId()) + varLongSize(book.getPriceCents())
+                + stringSize(book.getTitle()) + stringSize(book.getAuthor());
+    }
+
+    static void putBook(ByteBuffer out, Book book) {
+        putVarInt(out, book.getId());
+        putVarLong(out, book.getPriceCents());
+        putString(out, book.getTitle());
+        putString(out, book.getAuthor());
+    }
+
+    static Book getBook(ByteBuffer in) {
+        int id = getVarInt(in);
+        long priceCents = getVarLong(in);
+        String title = getString(in);
+        String author = getString(in);
+        return Book.ofCents(id, title, author, priceCents);
+    }
+
+    // Order: id, flags, customer, address, item count, then book ID, quantity and reserved flag per item
+    static int orderSize(Order order) {
+        MyArrayList<OrderItem> items = order.getItems();
+        int size = orderHeaderSize(order.getId(), order.getCustomerName(), order.getAddress(), items.size());
+        for (int i = 0; i < items.size(); i++) {
+            size += varIntSize(items.get(i).getBook().getId()) + varIntSize(items.get(i).getQuantity()) + 1;
+        }
+        return size;
+    }
+
+    static void putOrder(ByteBuffer out, Order order) {
+        MyArrayList<OrderItem> items = order.getItems();
+        putOrderHeader(out, order.getId(), order.isExpress(), order.getCustomerName(), order.getAddress(), items.size());
+        for (int i = 0; i < items.size(); i++) {
+            OrderItem item = items.get(i);
+            putItem(out, item.getBook().getId(), item.getQuantity(), item.isReserved());
+        }
+    }
+
+    // Everything before the items, for writers that hold the fields rather than an Order
+    static int orderHeaderSize(int id, String customer, String address, int itemCount) {
+        return varIntSize(id) + 1 + stringSize(customer) + stringSize(address) + varIntSize(itemCount);
+    }
+
+    static void putOrderHeader(ByteBuffer out, int id, boolean express, String customer, String address, int itemCount) {
+        putVarInt(out, id);
+        out.put((byte) ((express ? FLAG_EXPRESS : 0) | FLAG_RESERVATIONS));
+        putString(out, customer);
+        putString(out, address);
+        putVarInt(out, itemCount);
+    }
+
+    static void putItem(ByteBuffer out, int bookId, int quantity, boolean reserved) {
+        putVarInt(out, bookId);
+        putVarInt(out, quantity);
+        out.put((byte) (reserved ? 1 : 0));
+    }
+
+    // Rebuild an order with its books looked up by ID, or null if one of them is gone (the whole
+    // record is consumed either way). Items keep the reserved flag they were written with, but no
+    // stock is reserved and the status is left to the caller.
+    static Order getOrder(ByteBuffer in, IntFunction<Book> bookLookup) {
+        int id = getVarInt(in);
+        byte flags = in.get();
+        Order order = new Order(id, getString(in), getString(in));
+        order.setExpress((flags & FLAG_EXPRESS) != 0);
+
+        boolean complete = true;
+        int itemCount = getVarInt(in);
+        for (int i = 0; i < itemCount; i++) {
+            Book book = bookLookup.apply(getVarInt(in));
+            int quantity = getVarInt(in);
+            boolean reserved = (flags & FLAG_RESERVATIONS) == 0 || in.get() != 0;
+            if (book == null) {
+                complete = false;
+            } else {
+                order.addBook(book, quantity);
+                order.getItems().get(order.getItems().size() - 1).setReserved(reserved);
+            }
+        }
+        return complete ? order : null;
+    }
+
+    // ID of the order encoded at the buffer's position, without moving it
+    static int peekOrderId(ByteBuffer in) {
+        int position = in.position();
+        int id = getVarInt(in);
+        in.position(position);
+        return id;
+    }
+
+    // Walk an encoded order's items without building any objects
+    static void forEachItem(ByteBuffer in, ItemVisitor visitor) {
+        getVarInt(in);
+        byte flags = in.get();
+        skipString(in);
+        skipString(in);
+        int itemCount = getVarInt(in);
+        for (int i = 0; i < itemCount; i++) {
+            int bookId = getVarInt(in);
+            int quantity = getVarInt(in);
+            visitor.item(bookId, quantity, (flags & FLAG_RESERVATIONS) == 0 || in.get() != 0);
+        }
+    }
+
+    // Unsigned: negative values take the full five bytes
+    static void putVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int getVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static int varIntSize(int value) {
+        return value == 0 ? 1 : (38 - Integer.numberOfLeadingZeros(value)) / 7;
+    }
+
+    static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static int varLongSize(long value) {
+        return value == 0 ? 1 : (70 - Long.numberOfLeadingZeros(value)) / 7;
+    }
+
+    // Varint byte length, then the UTF-8 bytes written straight into the buffer
+    static void putString(ByteBuffer out, String value) {
+        putVarInt(out, utf8Length(value));
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?'); // unpaired surrogate, as String.getBytes does
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    static String getString(ByteBuffer in) {
+        int length = getVarInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Malformed string length: " + length);
+        }
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    static int stringSize(String value) {
+        int length = utf8Length(value);
+        return varIntSize(length) + length;
+    }
+
+    private static void skipString(ByteBuffer in) {
+        int length = getVarInt(in);
+        in.position(in.position() + length);
+    }
+
+    // Encoded length without encoding, using the same rules as putString
+    private static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 2; // 4 bytes for the pair
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    bytes += 2;
+                }
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+}
+
+// Thread-safe order ID source: an atomic counter, optionally persisted so IDs are never reused
+// Instead of saving every ID, the file records the end of a reserved block of IDs. After a restart
+// numbering continues from that mark, leaving a gap of unused IDs rather than a collision.
+class OrderIdGenerator implements Closeable {
+    static final int FIRST_ID = 1000;
+    private static final int BLOCK_SIZE = 1024;
+    private static final int MAGIC = 0x4F494453; // "OIDS"
+
+    private final AtomicInteger nextId;
+    private final FileChannel channel; // null when IDs are not persisted
+    private final ByteBuffer record = ByteBuffer.allocate(8);
+    private volatile int reservedUpTo; // IDs below this are covered by the file
+
+    private OrderIdGenerator(FileChannel channel, int firstId) {
+        this.channel = channel;
+        this.nextId = new AtomicInteger(firstId);
+        this.reservedUpTo = channel != null ? firstId : Integer.MAX_VALUE;
+    }
+
+    // In-memory generator, IDs restart at firstId on the next run
+    public OrderIdGenerator(int firstId) {
+        this(null, firstId);
+    }
+
+    // Open (or create) the ID file, continuing above the saved mark and above minimumId
+    public static OrderIdGenerator open(Path path, int minimumId) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            int firstId = Math.max(FIRST_ID, minimumId);
+            if (channel.size() > 0) {
+                ByteBuffer data = ByteBuffer.allocate(8);
+                if (channel.read(data, 0) < 8 || data.getInt(0) != MAGIC) {
+                    throw new IOException("Order ID file is corrupt");
+                }
+                firstId = Math.max(firstId, data.getInt(4));
+            }
+            return new OrderIdGenerator(channel, firstId);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Hand out the next ID; only the first ID of each block touches the file.
+    // If the mark can't be saved the ID is skipped, not handed out, and the next call tries again.
+    public int next() throws IOException {
+        int id = nextId.getAndIncrement();
+        if (id < FIRST_ID) {
+            throw new IllegalStateException("Order IDs are exhausted");
+        }
+        if (id >= reservedUpTo) {
+            reserve(id);
+        }
+        return id;
+    }
+
+    // Save a new mark past id before any ID of the block is handed out; the block only counts as
+    // reserved once the mark is on disk
+    private synchronized void reserve(int id) throws IOException {
+        if (id < reservedUpTo) {
+            return; // another thread reserved the block first
+        }
+        int mark = (int) Math.min((long) id + BLOCK_SIZE, Integer.MAX_VALUE);
+        record.clear();
+        record.putInt(MAGIC).putInt(mark);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record, record.position());
+        }
+        channel.force(false);
+        reservedUpTo = mark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
+
+// Binary catalog file with fixed-size book records, read through memory mapping
+// Layout: a 64-byte header (magic, version, record size, record count) followed by
+// 256-byte records: id, price, then length-prefixed UTF-8 title and author.
+class BookCatalogFile implements Closeable {
+    private static final int MAGIC = 0x424B4354; // "BKCT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int COUNT_OFFSET = 16;
+    private static final int RECORD_SIZE = 256;
+    private static final int TITLE_OFFSET = 12;   // short length + bytes
+    private static final int MAX_TITLE_BYTES = 160;
+    private static final int AUTHOR_OFFSET = TITLE_OFFSET + 2 + MAX_TITLE_BYTES;
+    private static final int MAX_AUTHOR_BYTES = RECORD_SIZE - AUTHOR_OFFSET - 2;
+    // Map in segments so catalogs over 2GB work; a segment always holds whole records
+    private static final int RECORDS_PER_SEGMENT = (1 << 30) / RECORD_SIZE;
+
+    private final FileChannel channel;
+    private final ByteBuffer countBuffer = ByteBuffer.allocate(8);
+    private final byte[] stringBuffer = new byte[MAX_TITLE_BYTES];
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private int mappedCount; // records covered by the current mapping
+    private int count;
+
+    private BookCatalogFile(FileChannel channel, int count) {
+        this.channel = channel;
+        this.count = count;
+    }
+
+    // Open a catalog file, creating an empty one if it doesn't exist
+    public static BookCatalogFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.size() == 0) {
+                header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0).putLong(0);
+                header.clear();
+                writeFully(channel, header, 0);
+                channel.force(true);
+                return new BookCatalogFile(channel, 0);
+            }
+
+            header.limit(HEADER_SIZE);
+            if (channel.read(header, 0) < HEADER_SIZE) {
+                throw new IOException("Catalog file header is truncated");
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a catalog file");
+            }
+            int version = header.getInt();
+            if (version != VERSION || header.getInt() != RECORD_SIZE) {
+                throw new IOException("Unsupported catalog file version: " + version);
+            }
+
+            // Trust the header count, a record past it was not committed before a crash
+            long count = header.getLong(COUNT_OFFSET);
+            long available = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+            if (count < 0 || count > available || count > Integer.MAX_VALUE) {
+                throw new IOException("Catalog file record count is corrupt: " + count);
+            }
+            return new BookCatalogFile(channel, (int) count);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Check if the title and author fit in a record
+    public static boolean fits(String title, String author) {
+        return title.getBytes(StandardCharsets.UTF_8).length <= MAX_TITLE_BYTES
+                && author.getBytes(StandardCharsets.UTF_8).length <= MAX_AUTHOR_BYTES;
+    }
+
+    // Get number of records
+    public int size() {
+        return count;
+    }
+
+    // Decode the record at index straight from the mapping
+    public synchronized Book read(int index) throws IOException {
+        MappedByteBuffer segment = segmentOf(index);
+        int offset = offsetOf(index);
+
+        int id = segment.getInt(offset);
+        double price = segment.getDouble(offset + 4);
+        String title = readString(segment, offset + TITLE_OFFSET);
+        String author = readString(segment, offset + AUTHOR_OFFSET);
+        return new Book(id, title, author, price);
+    }
+
+    // Decode only the title of the record at index
+    public synchronized String readTitle(int index) throws IOException {
+        return readString(segmentOf(index), offsetOf(index) + TITLE_OFFSET);
+    }
+
+    // Decode only the author of the record at index
+    public synchronized String readAuthor(int index) throws IOException {
+        return readString(segmentOf(index), offsetOf(index) + AUTHOR_OFFSET);
+    }
+
+    // Copy the IDs and prices (in cents) of records [from, to) into the arrays at the same indexes
+    public synchronized void readNumeric(int from, int to, int[] ids, long[] priceCents) throws IOException {
+        if (from < to) {
+            segmentOf(to - 1);
+        }
+        for (int index = from; index < to; index++) {
+            MappedByteBuffer segment = segments[index / RECORDS_PER_SEGMENT];
+            int offset = offsetOf(index);
+            ids[index] = segment.getInt(offset);
+            priceCents[index] = Money.toCents(segment.getDouble(offset + 4));
+        }
+    }
+
+    // Append a record and make it durable before returning
+    public void append(Book book) throws IOException {
+        MyArrayList<Book> books = new MyArrayList<>();
+        books.add(book);
+        appendAll(books);
+    }
+
+    // Append several records with a single sync, durable before returning
+    public synchronized void appendAll(MyArrayList<Book> books) throws IOException {
+        if (books.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer records = ByteBuffer.allocate(books.size() * RECORD_SIZE);
+        for (int i = 0; i < books.size(); i++) {
+            Book book = books.get(i);
+            byte[] title = book.getTitle().getBytes(StandardCharsets.UTF_8);
+            byte[] author = book.getAuthor().getBytes(StandardCharsets.UTF_8);
+            if (title.length > MAX_TITLE_BYTES || author.length > MAX_AUTHOR_BYTES) {
+                throw new IllegalArgumentException("Title or author is too long for the catalog file");
+            }
+
+            int offset = i * RECORD_SIZE;
+            records.position(offset);
+            records.putInt(book.getId()).putDouble(book.getPrice());
+            records.putShort((short) title.length).put(title);
+            records.position(offset + AUTHOR_OFFSET);
+            records.putShort((short) author.length).put(author);
+        }
+        records.clear();
+
+        // Records first, then the count - a crash in between leaves the records uncommitted
+        writeFully(channel, records, HEADER_SIZE + (long) count * RECORD_SIZE);
+        channel.force(true);
+
+        countBuffer.clear();
+        countBuffer.putLong(0, count + (long) books.size());
+        writeFully(channel, countBuffer, COUNT_OFFSET);
+        channel.force(false);
+        count += books.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segments = new MappedByteBuffer[0];
+        mappedCount = 0;
+        channel.close();
+    }
+
+    // Segment holding the record at index, mapping newly appended records first
+    private MappedByteBuffer segmentOf(int index) throws IOException {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+        if (index >= mappedCount) {
+            remap();
+        }
+        return segments[index / RECORDS_PER_SEGMENT];
+    }
+
+    private static int offsetOf(int index) {
+        return (index % RECORDS_PER_SEGMENT) * RECORD_SIZE;
+    }
+
+    // Map every committed record, one segment per RECORDS_PER_SEGMENT records
+    private void remap() throws IOException {
+        int segmentCount = (count + RECORDS_PER_SEGMENT - 1) / RECORDS_PER_SEGMENT;
+        MappedByteBuffer[] newSegments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            int records = Math.min(RECORDS_PER_SEGMENT, count - i * RECORDS_PER_SEGMENT);
+            long position = HEADER_SIZE + (long) i * RECORDS_PER_SEGMENT * RECORD_SIZE;
+            newSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) records * RECORD_SIZE);
+        }
+        segments = newSegments;
+        mappedCount = count;
+    }
+
+    // Read a short-length-prefixed UTF-8 string
+    private String readString(MappedByteBuffer segment, int offset) throws IOException {
+        int length = segment.getShort(offset);
+        if (length < 0 || length > stringBuffer.length) {
+            throw new IOException("Corrupt string length in catalog record: " + length);
+        }
+        segment.get(offset + 2, stringBuffer, 0, length);
+        return new String(stringBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Positional write that loops until the buffer is drained
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
+
+// Append-only write-ahead log for orders, with group commit and periodic snapshots
+// Callers append an event and then wait for it to be durable; a single flusher thread
+// writes everything appended since its last write and syncs once for the whole group.
+// Full segments are rotated out and folded into a snapshot by a compaction thread.
+class OrderLog implements Closeable {
+    static final byte ENQUEUE = 1;         // old logs only, payload: fixed-width order
+    static final byte PROCESS = 2;         // payload: order ID
+    static final byte PROCESSED = 3;       // old snapshots only, payload: fixed-width processed order
+    static final byte CANCEL = 4;          // payload: order ID
+    static final byte STOCK = 5;           // payload: book ID, copies received (negative when written off)
+    static final byte ORDER = 6;           // payload: order in RecordCodec format
+    static final byte PROCESSED_ORDER = 7; // snapshot only, payload: processed order in RecordCodec format
+    static final byte ARCHIVED = 8;        // payload: orders in the archive, processed position it reaches
+    private static final byte FLAG_EXPRESS = 1;
+    static final int SNAPSHOT_MAGIC = 0x4F534E50; // "OSNP"
+    private static final int VERSION = 3; // 1 wrote fixed-width orders, 2 no reservations or archive marks; both still read
+    private static final long SEGMENT_BYTES = 4L << 20;
+    private static final String SNAPSHOT_FILE = "orders.snapshot";
+
+    private final Path directory;
+    private final IntFunction<Book> bookLookup;
+    private final Object lock = new Object();
+    private final Thread flusher;
+    private final MyArrayList<Order> recoveredPending = new MyArrayList<>();
+    private final MyArrayList<Order> recoveredProcessed = new MyArrayList<>(); // bottom to top
+    private final MyIntList recoveredPositions = new MyIntList(); // processed position of each recovered processed order
+    private final MyArrayList<long[]> recoveredStock = new MyArrayList<>(); // {book ID, copies on hand}
+    private int skippedOrders;
+    private int processedCount;   // processed orders the log has seen, archived ones included
+    private int archivedCount;    // orders the archive held at the last ARCHIVED record
+    private int archivedThrough;  // processed positions below this are in the archive
+
+    // Guarded by lock
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024); // appended, not yet written
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long appendedLsn;
+    private long durableLsn;
+    private IOException failure;
+    private boolean closed;
+
+    // Owned by the flusher thread
+    private FileChannel segment;
+    private long segmentNumber;
+    private long segmentSize;
+    private Thread compactor;
+
+    // Orders still pending and already processed, kept as RecordCodec payloads while replaying,
+    // plus the copies on hand of every tracked book. Processed orders are numbered by position in
+    // processing order; an ARCHIVED record drops those the archive already holds, so they are never
+    // decoded or written to another snapshot. Copies received, copies written off and the
+    // reserved copies of processed orders are all exact deltas (a write-off never takes reserved
+    // copies, so nothing is clamped), which sum to the same level however the log interleaves them.
+    private static class LogState {
+        // Logged orders by log position, null once processed or cancelled. Events name an order by ID and
+        // old logs can hold two live orders with the same ID, so an ID maps to its oldest pending position
+        // and later positions with the same ID are chained behind it; none of them is dropped.
+        final MyArrayList<byte[]> pendingInOrder = new MyArrayList<>();
+        final MyIntList nextWithSameId = new MyIntList(); // position -> next pending position with its ID, or -1
+        final MyIntHashMap<Integer> firstPendingById = new MyIntHashMap<>();
+        MyArrayList<byte[]> processed = new MyArrayList<>(); // from position processedBase, null once archived
+        int processedStart;  // index in processed of the first order not archived
+        int processedBase;   // position of processed.get(processedStart)
+        int archivedCount;
+        final MyIntHashMap<long[]> stockById = new MyIntHashMap<>();
+        final MyIntList stockIds = new MyIntList(); // tracked books, in the order they were first stocked
+
+        void apply(byte type, byte[] payload) {
+            ByteBuffer data = ByteBuffer.wrap(payload);
+            if (type == STOCK) {
+                addStock(data.getInt(), data.getLong());
+                return;
+            }
+
+            if (type == ENQUEUE || type == PROCESSED) {
+                payload = convertFixedWidth(payload);
+            }
+            if (type == ENQUEUE || type == ORDER) {
+                addPending(payload);
+            } else if (type == PROCESSED || type == PROCESSED_ORDER) {
+                processed.add(payload);
+            } else if (type == PROCESS) {
+                byte[] order = takePending(data.getInt());
+                if (order != null) {
+                    processed.add(order);
+                    commitStock(order);
+                }
+            } else if (type == CANCEL) {
+                takePending(data.getInt());
+            } else if (type == ARCHIVED) {
+                archivedCount = data.getInt();
+                archiveThrough(data.getInt());
+            }
+        }
+
+        // Processed orders seen so far, archived ones included
+        int processedCount() {
+            return processedBase + processed.size() - processedStart;
+        }
+
+        // Forget the processed orders below a position, the archive holds them
+        void archiveThrough(int position) {
+            while (processedBase < position && processedStart < processed.size()) {
+                processed.set(processedStart++, null);
+                processedBase++;
+            }
+            processedBase = Math.max(processedBase, position);
+            if (processedStart > 1024 && processedStart * 2 > processed.size()) {
+                MyArrayList<byte[]> kept = new MyArrayList<>();
+                for (int i = processedStart; i < processed.size(); i++) {
+                    kept.add(processed.get(i));
+                }
+                processed = kept;
+                processedStart = 0;
+            }
+        }
+
+        // Queue a logged order at the next log position
+        void addPending(byte[] order) {
+            int position = pendingInOrder.size();
+            pendingInOrder.add(order);
+            nextWithSameId.add(-1);
+
+            int id = RecordCodec.peekOrderId(ByteBuffer.wrap(order));
+            Integer first = firstPendingById.get(id);
+            if (first == null) {
+                firstPendingById.put(id, position);
+                return;
+            }
+            int last = first;
+            while (nextWithSameId.get(last) >= 0) {
+                last = nextWithSameId.get(last);
+            }
+            nextWithSameId.set(last, position);
+        }
+
+        // Remove the oldest pending order with this ID, returns its payload or null if there is none
+        byte[] takePending(int id) {
+            Integer first = firstPendingById.remove(id);
+            if (first == null) {
+                return null;
+            }
+            int next = nextWithSameId.get(first);
+            if (next >= 0) {
+                firstPendingById.put(id, next);
+            }
+            byte[] order = pendingInOrder.get(first);
+            pendingInOrder.set(first, null);
+            return order;
+        }
+
+        void addStock(int bookId, long copies) {
+            long[] onHand = stockById.get(bookId);
+            if (onHand == null) {
+                onHand = new long[1];
+                stockById.put(bookId, onHand);
+                stockIds.add(bookId);
+            }
+            onHand[0] += copies;
+        }
+
+        // Take a processed order's reserved copies out of stock, the same way Inventory.commit does
+        void commitStock(byte[] order) {
+            RecordCodec.forEachItem(ByteBuffer.wrap(order), (bookId, quantity, reserved) -> {
+                long[] onHand = stockById.get(bookId);
+                if (reserved && onHand != null) {
+                    onHand[0] -= quantity;
+                }
+            });
+        }
+
+        // Re-encode an order payload from version 1 logs (fixed-width ints, then an optional
+        // flags byte) in the RecordCodec format, so the rest of the replay sees one format.
+        // Version 1 didn't record reservations, so every item is marked reserved as before.
+        static byte[] convertFixedWidth(byte[] payload) {
+            ByteBuffer data = ByteBuffer.wrap(payload);
+            int id = data.getInt();
+            String customer = readFixedString(data);
+            String address = readFixedString(data);
+            int itemCount = data.getInt();
+            int itemsStart = data.position();
+            data.position(itemsStart + itemCount * 8);
+            boolean express = data.hasRemaining() && (data.get() & FLAG_EXPRESS) != 0;
+
+            int size = RecordCodec.orderHeaderSize(id, customer, address, itemCount) + itemCount * 11;
+            ByteBuffer out = ByteBuffer.allocate(size);
+            RecordCodec.putOrderHeader(out, id, express, customer, address, itemCount);
+            data.position(itemsStart);
+            for (int i = 0; i < itemCount; i++) {
+                RecordCodec.putItem(out, data.getInt(), data.getInt(), true);
+            }
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        static String readFixedString(ByteBuffer data) {
+            int length = data.getInt();
+            String value = new String(data.array(), data.position(), length, StandardCharsets.UTF_8);
+            data.position(data.position() + length);
+            return value;
+        }
+
+        // Pending payloads in queue order (entries that were processed since are skipped)
+        MyArrayList<byte[]> pending() {
+            MyArrayList<byte[]> result = new MyArrayList<>();
+            for (int i = 0; i < pendingInOrder.size(); i++) {
+                byte[] order = pendingInOrder.get(i);
+                if (order != null) {
+                    result.add(order);
+                }
+            }
+            return result;
+        }
+    }
+
+    private OrderLog(Path directory, IntFunction<Book> bookLookup) {
+        this.directory = directory;
+        this.bookLookup = bookLookup;
+        this.flusher = new Thread(this::flushLoop, "order-log-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    // Open the log in a directory, recovering the orders it describes
+    public static OrderLog open(Path directory, IntFunction<Book> bookLookup) throws IOException {
+        Files.createDirectories(directory);
+        OrderLog log = new OrderLog(directory, bookLookup);
+
+        long lastSegment = log.recover();
+        log.segmentNumber = lastSegment + 1;
+        log.segment = FileChannel.open(log.segmentPath(log.segmentNumber),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        log.flusher.start();
+        return log;
+    }
+
+    // Pending orders found during recovery, in queue order
+    public MyArrayList<Order> getRecoveredPending() {
+        return recoveredPending;
+    }
+
+    // Processed orders found during recovery that the archive doesn't hold, oldest first
+    public MyArrayList<Order> getRecoveredProcessed() {
+        return recoveredProcessed;
+    }
+
+    // Processed position of each order in getRecoveredProcessed()
+    public MyIntList getRecoveredPositions() {
+        return recoveredPositions;
+    }
+
+    // Processed orders the log has seen, archived ones and skipped ones included
+    public int getProcessedCount() {
+        return processedCount;
+    }
+
+    // Orders the archive held when the log last recorded it
+    public int getArchivedCount() {
+        return archivedCount;
+    }
+
+    // Processed positions below this are in the archive
+    public int getArchivedThrough() {
+        return archivedThrough;
+    }
+
+    // Stock levels found during recovery, as {book ID, copies on hand}
+    public MyArrayList<long[]> getRecoveredStock() {
+        return recoveredStock;
+    }
+
+    // Drop the recovered orders once they have been taken, so the log doesn't keep them all reachable
+    public void releaseRecovered() {
+        recoveredPending.clear();
+        recoveredProcessed.clear();
+        recoveredPositions.clear();
+        recoveredStock.clear();
+    }
+
+    // Number of recovered orders dropped because a book they reference no longer exists
+    public int getSkippedOrders() {
+        return skippedOrders;
+    }
+
+    // Log a newly placed order, returns the sequence number to wait on
+    public long logEnqueue(Order order) throws IOException {
+        synchronized (lock) {
+            int start = beginRecord(ORDER);
+            ensureCapacity(RecordCodec.orderSize(order));
+            RecordCodec.putOrder(buffer, order);
+            return endRecord(start);
+        }
+    }
+
+    // Log that an order was processed, returns the sequence number to wait on
+    public long logProcessed(Order order) throws IOException {
+        synchronized (lock) {
+            int start = beginRecord(PROCESS);
+            ensureCapacity(4);
+            buffer.putInt(order.getId());
+            return endRecord(start);
+        }
+    }
+
+    // Log that a pending order was cancelled, returns the sequence number to wait on
+    public long logCancelled(Order order) throws IOException {
+        synchronized (lock) {
+            int start = beginRecord(CANCEL);
+            ensureCapacity(4);
+            buffer.putInt(order.getId());
+            return endRecord(start);
+        }
+    }
+
+    // Log that the archive now holds count orders, every processed order below position through
+    public long logArchived(int count, int through) throws IOException {
+        synchronized (lock) {
+            int start = beginRecord(ARCHIVED);
+            ensureCapacity(8);
+            buffer.putInt(count).putInt(through);
+            return endRecord(start);
+        }
+    }
+
+    // Log copies of a book received (or written off when negative), returns the sequence number to wait on
+    public long logStock(int bookId, long copies) throws IOException {
+        synchronized (lock) {
+            int start = beginRecord(STOCK);
+            ensureCapacity(12);
+            buffer.putInt(bookId).putLong(copies);
+            return endRecord(start);
+        }
+    }
+
+    // Wait until every event up to lsn is on disk
+    public void awaitDurable(long lsn) throws IOException {
+        synchronized (lock) {
+            while (durableLsn < lsn && failure == null && !closed) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the order log");
+                }
+            }
+            if (durableLsn < lsn) {
+                throw failure != null ? failure : new IOException("Order log is closed");
+            }
+        }
+    }
+
+    // Flush everything appended so far and stop the background threads
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        joinQuietly(flusher);
+        Thread running = compactor;
+        if (running != null) {
+            joinQuietly(running);
+        }
+        segment.close();
+        synchronized (lock) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    // Group commit loop: write and sync whatever accumulated while the previous sync ran
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer toWrite;
+            long target;
+            synchronized (lock) {
+                while (buffer.position() == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (buffer.position() == 0) {
+                    return;
+                }
+                toWrite = buffer;
+                buffer = spare;
+                spare = toWrite;
+                target = appendedLsn;
+            }
+
+            try {
+                toWrite.flip();
+                while (toWrite.hasRemaining()) {
+                    segmentSize += segment.write(toWrite);
+                }
+                segment.force(false);
+                toWrite.clear();
+
+                synchronized (lock) {
+                    durableLsn = target;
+                    lock.notifyAll();
+                }
+
+                if (segmentSize >= SEGMENT_BYTES) {
+                    rotate();
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    closed = true;
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    // Start a new segment and fold the full ones into the snapshot in the background
+    private void rotate() throws IOException {
+        segment.close();
+        long lastFull = segmentNumber;
+        segmentNumber++;
+        segment = FileChannel.open(segmentPath(segmentNumber),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentSize = 0;
+
+        // Only one compaction at a time; a later one picks up every full segment
+        if (compactor == null || !compactor.isAlive()) {
+            compactor = new Thread(() -> compact(lastFull), "order-log-compactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+    }
+
+    // Write a snapshot covering every segment up to lastSegment, then delete those segments
+    private void compact(long lastSegment) {
+        try {
+            LogState state = new LogState();
+            long covered = readSnapshot(state);
+            MyArrayList<Long> segments = listSegments();
+            for (int i = 0; i < segments.size(); i++) {
+                long number = segments.get(i);
+                if (number > covered && number <= lastSegment) {
+                    readSegment(segmentPath(number), state, false);
+                }
+            }
+
+            writeSnapshot(state, lastSegment);
+            for (int i = 0; i < segments.size(); i++) {
+                if (segments.get(i) <= lastSegment) {
+                    Files.deleteIfExists(segmentPath(segments.get(i)));
+                }
+            }
+        } catch (IOException e) {
+            // Leave the old snapshot and segments in place, recovery still works from them
+            System.out.println("Warning: order log compaction failed: " + e.getMessage());
+        }
+    }
+
+    // Rebuild the orders from the snapshot and the segments after it, returns the last segment number
+    private long recover() throws IOException {
+        LogState state = new LogState();
+        long covered = readSnapshot(state);
+        long last = covered;
+
+        MyArrayList<Long> segments = listSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            long number = segments.get(i);
+            if (number > covered) {
+                // A torn record can only be at the end of a segment - cut it off
+                readSegment(segmentPath(number), state, true);
+                if (Files.size(segmentPath(number)) == 0) {
+                    Files.delete(segmentPath(number));
+                }
+            } else {
+                // Already folded into the snapshot by a compaction that didn't finish deleting
+                Files.deleteIfExists(segmentPath(number));
+            }
+            last = Math.max(last, number);
+        }
+
+        for (int i = 0; i < state.stockIds.size(); i++) {
+            int bookId = state.stockIds.get(i);
+            recoveredStock.add(new long[] {bookId, state.stockById.get(bookId)[0]});
+        }
+        MyArrayList<byte[]> pending = state.pending();
+        for (int i = 0; i < pending.size(); i++) {
+            Order order = decodeOrder(pending.get(i), "Pending");
+            if (order != null) {
+                recoveredPending.add(order);
+            }
+        }
+        for (int i = state.processedStart; i < state.processed.size(); i++) {
+            Order order = decodeOrder(state.processed.get(i), "Processed");
+            if (order != null) {
+                recoveredProcessed.add(order);
+                recoveredPositions.add(state.processedBase + i - state.processedStart);
+            }
+        }
+        processedCount = state.processedCount();
+        archivedCount = state.archivedCount;
+        archivedThrough = state.processedBase;
+        return last;
+    }
+
+    // Read the snapshot into state, returns the last segment it covers (0 if there is none)
+    private long readSnapshot(LogState state) throws IOException {
+        Path path = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        // Records name their own format, so a version 1 snapshot replays like a current one
+        int version = data.remaining() < 16 || data.getInt() != SNAPSHOT_MAGIC ? -1 : data.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Order snapshot is corrupt or has an unsupported version");
+        }
+        long covered = data.getLong();
+        if (readRecords(data, state) != data.limit()) {
+            throw new IOException("Order snapshot is corrupt");
+        }
+        return covered;
+    }
+
+    // Write the state to a temporary file and atomically swap it in as the snapshot
+    private void writeSnapshot(LogState state, long lastSegment) throws IOException {
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putInt(SNAPSHOT_MAGIC).putInt(VERSION).putLong(lastSegment).flip();
+            writeFully(out, header);
+
+            for (int i = 0; i < state.stockIds.size(); i++) {
+                int bookId = state.stockIds.get(i);
+                ByteBuffer stock = ByteBuffer.allocate(12);
+                stock.putInt(bookId).putLong(state.stockById.get(bookId)[0]);
+                writeFully(out, frame(STOCK, stock.array()));
+            }
+            if (state.processedBase > 0) {
+                ByteBuffer archived = ByteBuffer.allocate(8);
+                archived.putInt(state.archivedCount).putInt(state.processedBase);
+                writeFully(out, frame(ARCHIVED, archived.array()));
+            }
+            MyArrayList<byte[]> pending = state.pending();
+            for (int i = 0; i < pending.size(); i++) {
+                writeFully(out, frame(ORDER, pending.get(i)));
+            }
+            for (int i = state.processedStart; i < state.processed.size(); i++) {
+                writeFully(out, frame(PROCESSED_ORDER, state.processed.get(i)));
+            }
+            out.force(true);
+        }
+        Files.move(temp, directory.resolve(SNAPSHOT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Replay one segment file, optionally truncating a torn tail
+    private void readSegment(Path path, LogState state, boolean truncateTail) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        int valid = readRecords(data, state);
+        if (truncateTail && valid < data.limit()) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        }
+    }
+
+    // Apply framed records until the data ends or a record fails its checksum, returns bytes consumed
+    private static int readRecords(ByteBuffer data, LogState state) {
+        CRC32 crc = new CRC32();
+        while (data.remaining() >= 4) {
+            int start = data.position();
+            int length = data.getInt();
+            if (length < 1 || length > data.remaining() - 4) { // no length + 4, it overflows for a torn length
+                return start;
+            }
+
+            crc.reset();
+            crc.update(data.array(), data.position(), length);
+            byte type = data.get();
+            byte[] payload = new byte[length - 1];
+            data.get(payload);
+            if ((int) crc.getValue() != data.getInt()) {
+                return start;
+            }
+            state.apply(type, payload);
+        }
+        return data.position();
+    }
+
+    // Frame: length, type + payload, CRC32 of type + payload
+    private static ByteBuffer frame(byte type, byte[] payload) {
+        ByteBuffer framed = ByteBuffer.allocate(9 + payload.length);
+        framed.putInt(payload.length + 1).put(type).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(framed.array(), 4, payload.length + 1);
+        framed.putInt((int) crc.getValue()).flip();
+        return framed;
+    }
+
+    // Reserve the frame header in the append buffer, returns where the record starts
+    private int beginRecord(byte type) throws IOException {
+        if (closed) {
+            throw failure != null ? failure : new IOException("Order log is closed");
+        }
+        ensureCapacity(5);
+        int start = buffer.position();
+        buffer.putInt(0).put(type);
+        return start;
+    }
+
+    // Fill in the length and checksum, returns the record's sequence number
+    private long endRecord(int start) {
+        int length = buffer.position() - start - 4;
+        buffer.putInt(start, length);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), start + 4, length);
+        ensureCapacity(4);
+        buffer.putInt((int) crc.getValue());
+
+        appendedLsn++;
+        lock.notifyAll();
+        return appendedLsn;
+    }
+
+    // Rebuild an order from its RecordCodec payload, or null if one of its books is gone
+    private Order decodeOrder(byte[] payload, String status) {
+        Order order = RecordCodec.getOrder(ByteBuffer.wrap(payload), bookLookup);
+        if (order == null) {
+            skippedOrders++;
+            return null;
+        }
+        order.setStatus(status);
+        return order;
+    }
+
+    // Grow the append buffer (keeping its contents) if the next write doesn't fit
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+    }
+
+    // Segment numbers present in the directory, ascending
+    private MyArrayList<Long> listSegments() throws IOException {
+        MyArrayList<Long> numbers = new MyArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "orders-*.wal")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(7, name.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        numbers.sort(Long::compare);
+        return numbers;
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("orders-%010d.wal", number));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// Processed orders: the most recent ones in memory, older ones archived to an append-only file
+// The in-memory window keeps LIFO access to recent orders. When it grows past its capacity the
+// oldest half is appended to the archive with one write and one sync, so the heap holds at most
+// capacity orders however long the store runs. The archive is indexed sparsely: every
+// INDEX_INTERVAL records share one entry with their file offset and ID range, so a lookup by ID
+// only reads the chunks whose range covers it (IDs mostly rise, so that is usually one chunk).
+// Layout: magic and RecordCodec version, then frames of length, RecordCodec order, CRC32 of the order.
+// A torn tail is cut off when the file is opened. Each order also has a position, its place among
+// every processed order the log has seen; the archive reaches a position (archivedThrough) that the
+// log records after every spill, so the log can drop the orders below it. An archive in another
+// format is started over: logs from before archive marks still hold every order, so restore()
+// archives them again, and alignArchive() reports any orders a newer log had already dropped.
+class ProcessedOrderHistory implements StackADT<Order>, Closeable {
+    private static final int MAGIC = 0x4F415243; // "OARC"
+    private static final int HEADER_SIZE = 8;
+    private static final int INDEX_INTERVAL = 64;
+    private static final int READ_BUFFER = 1 << 16;
+
+    private final StackADT<Order> recent;
+    private final int capacity;
+    private final Path archivePath;            // null: a temporary file, created on the first spill
+    private final IntFunction<Book> bookLookup;
+    private final Consumer<Order> onArchived;  // told about every order that left memory
+    private FileChannel archive;
+    private Path openedPath;
+    private long archiveSize; // bytes of whole, valid records
+    private int archivedCount;
+    private int archivedThrough; // processed positions below this are archived
+    private int nextPosition;    // position of the next pushed order
+    private MyIntList positions = new MyIntList(); // positions of the window's orders, oldest first
+    private int spillAt;      // window size that triggers the next spill
+    private IOException failure;
+
+    // Sparse index, one entry per INDEX_INTERVAL archived records
+    private long[] chunkOffsets = new long[16];
+    private int[] chunkMinIds = new int[16];
+    private int[] chunkMaxIds = new int[16];
+    private int chunkCount;
+
+    public ProcessedOrderHistory(StackADT<Order> recent, int capacity, Path archivePath,
+                                 IntFunction<Book> bookLookup, Consumer<Order> onArchived) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2");
+        }
+        this.recent = recent;
+        this.capacity = capacity;
+        this.archivePath = archivePath;
+        this.bookLookup = bookLookup;
+        this.onArchived = onArchived;
+        this.spillAt = capacity + 1;
+    }
+
+    // Open the archive file (creating it if needed) and rebuild the sparse index from it
+    public static ProcessedOrderHistory open(StackADT<Order> recent, int capacity, Path archivePath,
+                                             IntFunction<Book> bookLookup, Consumer<Order> onArchived) throws IOException {
+        ProcessedOrderHistory history = new ProcessedOrderHistory(recent, capacity, archivePath, bookLookup, onArchived);
+        history.openArchive();
+        history.scanArchive();
+        return history;
+    }
+
+    // Push onto the window, archiving the oldest half once it is over capacity
+    @Override
+    public synchronized void push(Order order) {
+        push(order, nextPosition++);
+    }
+
+    private void push(Order order, int position) {
+        recent.push(order);
+        positions.add(position);
+        if (recent.size() >= spillAt) {
+            spill();
+        }
+    }
+
+    @Override
+    public synchronized void pushAll(MyArrayList<? extends Order> orders) {
+        for (int i = 0; i < orders.size(); i++) {
+            push(orders.get(i));
+        }
+    }
+
+    // Pop the most recent order and its position; archived orders are permanent, so this only
+    // reaches the window
+    @Override
+    public synchronized Order pop() {
+        Order order = recent.pop();
+        positions.removeLast();
+        return order;
+    }
+
+    // Like pop(), these only count the in-memory window; getTotalCount() includes the archive
+    @Override
+    public synchronized boolean isEmpty() {
+        return recent.isEmpty();
+    }
+
+    @Override
+    public synchronized int size() {
+        return recent.size();
+    }
+
+    // Every processed order, archived ones included
+    public synchronized int getTotalCount() {
+        return recent.size() + archivedCount;
+    }
+
+    public synchronized int getArchivedCount() {
+        return archivedCount;
+    }
+
+    // Processed positions below this are in the archive
+    public synchronized int getArchivedThrough() {
+        return archivedThrough;
+    }
+
+    // The in-memory orders, most recent first
+    public synchronized MyArrayList<Order> recent() {
+        MyArrayList<Order> orders = new MyArrayList<>();
+        for (Order order : recent) {
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    // Read an archived order back by ID, or null if it isn't in the archive
+    public synchronized Order findArchived(int orderId) throws IOException {
+        for (int c = chunkCount - 1; c >= 0; c--) {
+            if (orderId < chunkMinIds[c] || orderId > chunkMaxIds[c]) {
+                continue;
+            }
+            Reader reader = new Reader(chunkOffsets[c], chunkEnd(c));
+            ByteBuffer payload;
+            while ((payload = reader.next()) != null) {
+                if (RecordCodec.peekOrderId(payload) == orderId) {
+                    return decode(payload);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Error from the last failed spill (those orders stay in memory), cleared once taken
+    public synchronized IOException takeFailure() {
+        IOException taken = failure;
+        failure = null;
+        return taken;
+    }
+
+    // Line the archive up with the order log's last ARCHIVED record, before anything is restored.
+    // If it holds more than the log knows about (a crash after a spill but before the log sync),
+    // the log wins: the extra records are cut off, the log still holds those orders. If it holds
+    // fewer, the file lost orders the log no longer has; that is reported through takeFailure().
+    public synchronized void alignArchive(int count, int through) throws IOException {
+        if (archivedCount > count) {
+            truncateArchive(count);
+        } else if (archivedCount < count) {
+            failure = new IOException("the archive is missing " + (count - archivedCount) + " processed orders");
+        }
+        archivedThrough = through;
+    }
+
+    // Put back the processed orders the order log still holds, oldest first, at their positions;
+    // processedCount is the position the next processed order gets
+    public synchronized void restore(MyArrayList<Order> processed, MyIntList orderPositions, int processedCount) {
+        for (int i = 0; i < processed.size(); i++) {
+            push(processed.get(i), orderPositions.get(i));
+        }
+        nextPosition = processedCount;
+    }
+
+    // Most recent first: the window, then the archive read back one chunk at a time
+    @Override
+    public Iterator<Order> iterator() {
+        MyArrayList<Order> window = recent();
+        int chunks;
+        synchronized (this) {
+            chunks = chunkCount;
+        }
+
+        return new Iterator<Order>() {
+            private int windowIndex = 0;
+            private int chunk = chunks;
+            private MyArrayList<Order> chunkOrders = new MyArrayList<>();
+            private int chunkIndex = -1; // next position in chunkOrders, counting down
+
+            @Override
+            public boolean hasNext() {
+                if (windowIndex < window.size() || chunkIndex >= 0) {
+                    return true;
+                }
+                while (chunk > 0) {
+                    chunk--;
+                    chunkOrders = readChunk(chunk);
+                    chunkIndex = chunkOrders.size() - 1;
+                    if (chunkIndex >= 0) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public Order next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (windowIndex < window.size()) {
+                    return window.get(windowIndex++);
+                }
+                return chunkOrders.get(chunkIndex--);
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (archive != null) {
+            archive.close();
+            archive = null;
+            if (archivePath == null) {
+                Files.deleteIfExists(openedPath);
+            }
+        }
+    }
+
+    // Archive the oldest orders past half the capacity and keep the newest half in memory
+    private void spill() {
+        MyArrayList<Order> newestFirst = new MyArrayList<>();
+        while (!recent.isEmpty()) {
+            newestFirst.add(recent.pop());
+        }
+        int keep = capacity / 2;
+        MyArrayList<Order> oldestFirst = new MyArrayList<>();
+        for (int i = newestFirst.size() - 1; i >= keep; i--) {
+            oldestFirst.add(newestFirst.get(i));
+        }
+
+        try {
+            append(oldestFirst);
+            spillAt = capacity + 1;
+            archivedThrough = positions.get(oldestFirst.size() - 1) + 1;
+            MyIntList kept = new MyIntList();
+            for (int i = oldestFirst.size(); i < positions.size(); i++) {
+                kept.add(positions.get(i));
+            }
+            positions = kept;
+            for (int i = 0; i < oldestFirst.size(); i++) {
+                onArchived.accept(oldestFirst.get(i));
+            }
+        } catch (IOException e) {
+            // Keep everything in memory and retry after another half window, not on every push
+            failure = e;
+            spillAt = newestFirst.size() + keep;
+            keep = newestFirst.size();
+        }
+        for (int i = Math.min(keep, newestFirst.size()) - 1; i >= 0; i--) {
+            recent.push(newestFirst.get(i));
+        }
+    }
+
+    // Append orders with one write and one sync, then extend the sparse index
+    private void append(MyArrayList<Order> orders) throws IOException {
+        if (archive == null) {
+            openArchive();
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(READ_BUFFER);
+        int[] starts = new int[orders.size()];
+        for (int i = 0; i < orders.size(); i++) {
+            starts[i] = out.position();
+            out = encode(out, orders.get(i));
+        }
+        out.flip();
+        long position = archiveSize;
+        while (out.hasRemaining()) {
+            position += archive.write(out, position);
+        }
+        archive.force(false);
+
+        for (int i = 0; i < orders.size(); i++) {
+            index(archiveSize + starts[i], orders.get(i).getId());
+        }
+        archiveSize = position;
+    }
+
+    // Record number archivedCount is at offset; start a new index entry every INDEX_INTERVAL records
+    private void index(long offset, int orderId) {
+        if (archivedCount % INDEX_INTERVAL == 0) {
+            if (chunkCount == chunkOffsets.length) {
+                chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+                chunkMinIds = Arrays.copyOf(chunkMinIds, chunkCount * 2);
+                chunkMaxIds = Arrays.copyOf(chunkMaxIds, chunkCount * 2);
+            }
+            chunkOffsets[chunkCount] = offset;
+            chunkMinIds[chunkCount] = orderId;
+            chunkMaxIds[chunkCount] = orderId;
+            chunkCount++;
+        } else {
+            chunkMinIds[chunkCount - 1] = Math.min(chunkMinIds[chunkCount - 1], orderId);
+            chunkMaxIds[chunkCount - 1] = Math.max(chunkMaxIds[chunkCount - 1], orderId);
+        }
+        archivedCount++;
+    }
+
+    private void openArchive() throws IOException {
+        if (archivePath != null) {
+            openedPath = archivePath;
+        } else {
+            openedPath = Files.createTempFile("orders-", ".archive");
+            openedPath.toFile().deleteOnExit();
+        }
+        archive = FileChannel.open(openedPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (archive.size() >= HEADER_SIZE) {
+            archive.read(header, 0);
+            if (header.getInt(0) == MAGIC && header.getInt(4) == RecordCodec.VERSION) {
+                return;
+            }
+        }
+        header.clear();
+        header.putInt(MAGIC).putInt(RecordCodec.VERSION).flip();
+        archive.truncate(0);
+        while (header.hasRemaining()) {
+            archive.write(header, header.position());
+        }
+        archive.force(true);
+        archiveSize = HEADER_SIZE;
+    }
+
+    // Index every valid record and cut off a torn tail
+    private void scanArchive() throws IOException {
+        archivedCount = 0;
+        chunkCount = 0;
+        Reader reader = new Reader(HEADER_SIZE, archive.size());
+        ByteBuffer payload;
+        long offset = HEADER_SIZE;
+        while ((payload = reader.next()) != null) {
+            index(offset, RecordCodec.peekOrderId(payload));
+            offset = reader.offset();
+        }
+        archiveSize = offset;
+        if (archive.size() > archiveSize) {
+            archive.truncate(archiveSize);
+            archive.force(true);
+        }
+    }
+
+    // Keep only the first count records
+    private void truncateArchive(int count) throws IOException {
+        Reader reader = new Reader(chunkOffsets[count / INDEX_INTERVAL], archiveSize);
+        for (int i = 0; i < count % INDEX_INTERVAL; i++) {
+            reader.next();
+        }
+        archive.truncate(reader.offset());
+        archive.force(true);
+        scanArchive();
+    }
+
+    private long chunkEnd(int chunk) {
+        return chunk + 1 < chunkCount ? chunkOffsets[chunk + 1] : archiveSize;
+    }
+
+    // Orders of one index chunk, oldest first (orders whose books are gone are left out)
+    private synchronized MyArrayList<Order> readChunk(int chunk) {
+        MyArrayList<Order> orders = new MyArrayList<>();
+        try {
+            Reader reader = new Reader(chunkOffsets[chunk], chunkEnd(chunk));
+            ByteBuffer payload;
+            while ((payload = reader.next()) != null) {
+                Order order = decode(payload);
+                if (order != null) {
+                    orders.add(order);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the order archive", e);
+        }
+        return orders;
+    }
+
+    // Frame an order into the buffer, growing it (contents kept) if needed
+    private static ByteBuffer encode(ByteBuffer out, Order order) {
+        int length = RecordCodec.orderSize(order);
+        if (out.remaining() < length + 8) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + length + 8));
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+        int start = out.position();
+        out.putInt(length);
+        RecordCodec.putOrder(out, order);
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), start + 4, length);
+        out.putInt((int) crc.getValue());
+        return out;
+    }
+
+    // Rebuild an archived order, or null if one of its books is gone
+    private Order decode(ByteBuffer payload) {
+        Order order = RecordCodec.getOrder(payload, bookLookup);
+        if (order != null) {
+            order.setStatus("Processed");
+        }
+        return order;
+    }
+
+    // Sequential reader over a byte range of the archive through one buffer, refilled as it drains
+    private final class Reader {
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+        private long bufferStart; // file offset of buffer index 0
+        private final long end;
+
+        Reader(long from, long end) {
+            this.bufferStart = from;
+            this.end = end;
+            buffer.limit(0);
+        }
+
+        // File offset just past the last record returned
+        long offset() {
+            return bufferStart + buffer.position();
+        }
+
+        // Next record's payload (a view that is only valid until the next call),
+        // or null at the end of the range or at a torn or corrupt record
+        ByteBuffer next() throws IOException {
+            if (!require(4)) {
+                return null;
+            }
+            int length = buffer.getInt(buffer.position());
+            if (length < 5 || !require(length + 8)) {
+                return null;
+            }
+            int start = buffer.position() + 4;
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), start, length);
+            if ((int) crc.getValue() != buffer.getInt(start + length)) {
+                return null;
+            }
+            buffer.position(start + length + 4);
+            return buffer.slice(start, length);
+        }
+
+        // Make at least n bytes available, false if the range ends first
+        private boolean require(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return true;
+            }
+            if (offset() + n > end) {
+                return false;
+            }
+
+            bufferStart += buffer.position();
+            if (buffer.capacity() < n) {
+                ByteBuffer bigger = ByteBuffer.allocate(n);
+                bigger.put(buffer);
+                buffer = bigger;
+            } else {
+                buffer.compact();
+            }
+            buffer.limit((int) Math.min(buffer.capacity(), end - bufferStart));
+            while (buffer.position() < n) {
+                if (archive.read(buffer, bufferStart + buffer.position()) < 0) {
+                    buffer.flip();
+                    return false;
+                }
+            }
+            buffer.flip();
+            return true;
+        }
+    }
+}
+
+// The catalog's book storage: one primitive array per field instead of one object per book
+// Rows are numbered in insertion order. Authors are dictionary-encoded, so each distinct name is
+// stored once and a row only holds its int code. Bulk operations scan the contiguous columns, and a
+// Book is only created for a row a caller asks for. Lookups by ID go through an open-addressing
+// table of row numbers, keyed by the ID column itself so it holds no copy of the IDs.
+// Over a catalog file, row n is record n of the file: titles and authors are only ever read from
+// the mapping, and the ID and price columns and the ID table are filled from it on first use, so
+// opening a catalog reads nothing but the header.
+class BookColumns {
+    private final BookCatalogFile file; // null when the rows are held in memory
+    private int[] ids;
+    private long[] priceCents;
+    private int[] authorCodes;  // in memory only
+    private String[] titles;    // in memory only
+    private int size;
+    private int numericRows;    // rows whose ID and price are in the arrays (all of them in memory)
+    private int[] rowSlots;     // row + 1 per slot, 0 marks an empty slot; null until first needed
+    private final MyHashMap<String, Integer> authorCodeByName = new MyHashMap<>();
+    private final MyArrayList<String> authorNames = new MyArrayList<>(); // code -> name
+
+    // Book-like view of one row; reuse it with moveTo instead of creating a Book per row
+    public class Cursor {
+        private int row;
+
+        public Cursor moveTo(int row) {
+            checkRow(row);
+            if (row >= numericRows) {
+                loadNumeric();
+            }
+            this.row = row;
+            return this;
+        }
+
+        public int getId() {
+            return ids[row];
+        }
+
+        public String getTitle() {
+            return title(row);
+        }
+
+        public String getAuthor() {
+            return author(row);
+        }
+
+        public double getPrice() {
+            return priceCents[row] / 100.0;
+        }
+
+        public long getPriceCents() {
+            return priceCents[row];
+        }
+    }
+
+    // Rows held in memory
+    public BookColumns() {
+        // Start with capacity of 16 rows
+        file = null;
+        ids = new int[16];
+        priceCents = new long[16];
+        authorCodes = new int[16];
+        titles = new String[16];
+        rowSlots = new int[32];
+        size = 0;
+    }
+
+    // Rows read from a catalog file, which every later book must be appended to before it is added
+    public BookColumns(BookCatalogFile file) {
+        this.file = file;
+        ids = new int[0];
+        priceCents = new long[0];
+        size = file.size();
+    }
+
+    // Append a book as a new row, returns the row number
+    public int add(Book book) {
+        if (rowOf(book.getId()) >= 0) {
+            throw new IllegalArgumentException("A book with ID " + book.getId() + " already exists");
+        }
+        if (file != null && file.size() <= size) {
+            throw new IllegalStateException("Books must be appended to the catalog file before they are added");
+        }
+        if (size == ids.length) {
+            resize(Math.max(16, size * 2));
+        }
+
+        if (file == null) {
+            Integer code = authorCodeByName.get(book.getAuthor());
+            if (code == null) {
+                code = authorNames.size();
+                authorNames.add(book.getAuthor());
+                authorCodeByName.put(book.getAuthor(), code);
+            }
+            authorCodes[size] = code;
+            titles[size] = book.getTitle();
+        }
+        ids[size] = book.getId();
+        priceCents[size] = book.getPriceCents();
+        numericRows++;
+        addSlot(size);
+        return size++;
+    }
+
+    // Get number of rows
+    public int size() {
+        return size;
+    }
+
+    // Create a reusable view for reading rows
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    // Row holding the book with this ID, or -1 if there is none
+    public int rowOf(int id) {
+        if (rowSlots == null) {
+            buildSlots();
+        }
+        int mask = rowSlots.length - 1;
+        for (int slot = slotOf(id, mask); rowSlots[slot] != 0; slot = (slot + 1) & mask) {
+            if (ids[rowSlots[slot] - 1] == id) {
+                return rowSlots[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    // Create a Book for a row
+    public Book book(int row) {
+        checkRow(row);
+        if (file != null) {
+            try {
+                return file.read(row);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read the catalog file", e);
+            }
+        }
+        return Book.ofCents(ids[row], titles[row], authorNames.get(authorCodes[row]), priceCents[row]);
+    }
+
+    // Create Books for rows, in the given order
+    public MyArrayList<Book> books(MyIntList rows) {
+        MyArrayList<Book> result = new MyArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            result.add(book(rows.get(i)));
+        }
+        return result;
+    }
+
+    // Get the book ID stored in a row
+    public int getId(int row) {
+        checkRow(row);
+        if (row >= numericRows) {
+            loadNumeric();
+        }
+        return ids[row];
+    }
+
+    public String getTitle(int row) {
+        checkRow(row);
+        return title(row);
+    }
+
+    public String getAuthor(int row) {
+        checkRow(row);
+        return author(row);
+    }
+
+    public long getPriceCents(int row) {
+        checkRow(row);
+        if (row >= numericRows) {
+            loadNumeric();
+        }
+        return priceCents[row];
+    }
+
+    // Rows with minCents <= price <= maxCents, in row order
+    public MyIntList filterByPrice(long minCents, long maxCents) {
+        loadNumeric();
+        MyIntList rows = new MyIntList();
+        for (int row = 0; row < size; row++) {
+            long price = priceCents[row];
+            if (price >= minCents && price <= maxCents) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    // Row numbers ordered by book ID
+    public int[] rowsSortedById() {
+        loadNumeric();
+        long[] keys = new long[size];
+        for (int row = 0; row < size; row++) {
+            // Flip the sign bit so negative IDs order before positive ones
+            keys[row] = (ids[row] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+        }
+        return sortRows(keys, 4);
+    }
+
+    // Row numbers ordered by price, ties keep row order
+    public int[] rowsSortedByPrice() {
+        loadNumeric();
+        long[] keys = new long[size];
+        for (int row = 0; row < size; row++) {
+            // Flip the sign bit so the unsigned order matches the signed one
+            keys[row] = priceCents[row] ^ Long.MIN_VALUE;
+        }
+        return sortRows(keys, 8);
+    }
+
+    // Row numbers ordered by title, ties keep row order (stable merge sort of the row numbers)
+    public int[] rowsSortedByTitle(ParallelCatalog parallel) {
+        // Decode each title once rather than on every comparison
+        String[] keys = titles;
+        if (file != null) {
+            keys = new String[size];
+            for (int row = 0; row < size; row++) {
+                keys[row] = title(row);
+            }
+        }
+        String[] sortKeys = keys;
+
+        MyArrayList<Integer> rows = new MyArrayList<>();
+        for (int row = 0; row < size; row++) {
+            rows.add(row);
+        }
+        parallel.sort(rows, (a, b) -> sortKeys[a].compareTo(sortKeys[b]));
+
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = rows.get(i);
+        }
+        return result;
+    }
+
+    // Stable LSD radix sort of row numbers by unsigned keys, one byte per pass
+    private int[] sortRows(long[] keys, int passes) {
+        int[] rows = new int[size];
+        for (int row = 0; row < size; row++) {
+            rows[row] = row;
+        }
+
+        int[] rowBuffer = new int[size];
+        long[] keyBuffer = new long[size];
+        int[] count = new int[257];
+
+        for (int pass = 0; pass < passes; pass++) {
+            int shift = pass * 8;
+
+            for (int d = 0; d < count.length; d++) {
+                count[d] = 0;
+            }
+            for (int i = 0; i < size; i++) {
+                count[(int) (keys[i] >>> shift & 0xFF) + 1]++;
+            }
+
+            // Skip the pass if every key has the same digit here
+            if (size == 0 || count[(int) (keys[0] >>> shift & 0xFF) + 1] == size) {
+                continue;
+            }
+
+            for (int d = 1; d < count.length; d++) {
+                count[d] += count[d - 1];
+            }
+            for (int i = 0; i < size; i++) {
+                int pos = count[(int) (keys[i] >>> shift & 0xFF)]++;
+                rowBuffer[pos] = rows[i];
+                keyBuffer[pos] = keys[i];
+            }
+
+            int[] tempRows = rows;
+            rows = rowBuffer;
+            rowBuffer = tempRows;
+            long[] tempKeys = keys;
+            keys = keyBuffer;
+            keyBuffer = tempKeys;
+        }
+        return rows;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+        }
+    }
+
+    private String title(int row) {
+        if (file == null) {
+            return titles[row];
+        }
+        try {
+            return file.readTitle(row);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the catalog file", e);
+        }
+    }
+
+    private String author(int row) {
+        if (file == null) {
+            return authorNames.get(authorCodes[row]);
+        }
+        try {
+            return file.readAuthor(row);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the catalog file", e);
+        }
+    }
+
+    // Fill the ID and price columns from the catalog file, one pass over the records not read yet
+    private void loadNumeric() {
+        if (numericRows == size) {
+            return;
+        }
+        if (ids.length < size) {
+            resize(size);
+        }
+        try {
+            file.readNumeric(numericRows, size, ids, priceCents);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the catalog file", e);
+        }
+        numericRows = size;
+    }
+
+    // Build the ID table over every row, sized so it stays at most half full
+    private void buildSlots() {
+        loadNumeric();
+        int capacity = 32;
+        while (capacity < size * 2) {
+            capacity *= 2;
+        }
+        rowSlots = new int[capacity];
+        for (int row = 0; row < size; row++) {
+            insertSlot(row);
+        }
+    }
+
+    // Put a row into the ID table, doubling it first if it would be more than half full
+    private void addSlot(int row) {
+        if ((size + 1) * 2 > rowSlots.length) {
+            int[] oldSlots = rowSlots;
+            rowSlots = new int[oldSlots.length * 2];
+            for (int slot : oldSlots) {
+                if (slot != 0) {
+                    insertSlot(slot - 1);
+                }
+            }
+        }
+        insertSlot(row);
+    }
+
+    private void insertSlot(int row) {
+        int mask = rowSlots.length - 1;
+        int slot = slotOf(ids[row], mask);
+        while (rowSlots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        rowSlots[slot] = row + 1;
+    }
+
+    // Spread the ID bits so sequential IDs don't cluster
+    private static int slotOf(int id, int mask) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    // Grow the columns to the new capacity
+    private void resize(int capacity) {
+        int[] newIds = new int[capacity];
+        long[] newPrices = new long[capacity];
+        System.arraycopy(ids, 0, newIds, 0, numericRows);
+        System.arraycopy(priceCents, 0, newPrices, 0, numericRows);
+        ids = newIds;
+        priceCents = newPrices;
+
+        if (file == null) {
+            int[] newAuthorCodes = new int[capacity];
+            String[] newTitles = new String[capacity];
+            System.arraycopy(authorCodes, 0, newAuthorCodes, 0, size);
+            System.arraycopy(titles, 0, newTitles, 0, size);
+            authorCodes = newAuthorCodes;
+            titles = newTitles;
+        }
+    }
+}
+
+// Ordered index on book price (skip list), ties broken by book ID
+// Range and top-K queries cost O(log n + k): one descent to the first match, then a walk along
+// the bottom level. The bottom level is doubly linked so the most expensive books walk backwards.
+// Nodes hold catalog rows, prices and IDs are read from the columns. Rows added to the columns are
+// indexed by the next query, so a catalog nobody searches by price never builds the index.
+class BookPriceIndex {
+    private static final int MAX_LEVEL = 32;
+
+    private final BookColumns columns;
+    private final Node head = new Node(-1, MAX_LEVEL); // sentinel, holds no row
+    private Node tail;  // most expensive book, or null when empty
+    private int level;  // highest level currently in use
+    private int size;
+    private long seed = 0x2545F4914F6CDD1DL;
+
+    private static class Node {
+        final int row;
+        final Node[] next;
+        Node previous; // bottom level only
+
+        Node(int row, int levels) {
+            this.row = row;
+            this.next = new Node[levels];
+        }
+    }
+
+    public BookPriceIndex(BookColumns columns) {
+        this.columns = columns;
+        level = 1;
+        size = 0;
+    }
+
+    // Index the rows added to the columns since the last update
+    public void update() {
+        while (size < columns.size()) {
+            add(size);
+        }
+    }
+
+    // Add the next catalog row to the index
+    private void add(int row) {
+        // Find the last node before the new one on every level
+        Node[] update = new Node[MAX_LEVEL];
+        Node node = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (node.next[i] != null && compare(node.next[i].row, row) < 0) {
+                node = node.next[i];
+            }
+            update[i] = node;
+        }
+
+        int newLevel = randomLevel();
+        if (newLevel > level) {
+            for (int i = level; i < newLevel; i++) {
+                update[i] = head;
+            }
+            level = newLevel;
+        }
+
+        Node newNode = new Node(row, newLevel);
+        for (int i = 0; i < newLevel; i++) {
+            newNode.next[i] = update[i].next[i];
+            update[i].next[i] = newNode;
+        }
+
+        newNode.previous = update[0] == head ? null : update[0];
+        if (newNode.next[0] != null) {
+            newNode.next[0].previous = newNode;
+        } else {
+            tail = newNode;
+        }
+        size++;
+    }
+
+    // Books with minCents <= price <= maxCents, cheapest first
+    public MyArrayList<Book> findInRange(long minCents, long maxCents) {
+        update();
+        MyIntList rows = new MyIntList();
+        for (Node node = firstAtLeast(minCents); node != null && columns.getPriceCents(node.row) <= maxCents;
+                node = node.next[0]) {
+            rows.add(node.row);
+        }
+        return columns.books(rows);
+    }
+
+    // Up to k cheapest books, cheapest first
+    public MyArrayList<Book> cheapest(int k) {
+        update();
+        MyIntList rows = new MyIntList();
+        for (Node node = head.next[0]; node != null && rows.size() < k; node = node.next[0]) {
+            rows.add(node.row);
+        }
+        return columns.books(rows);
+    }
+
+    // Up to k most expensive books, most expensive first
+    public MyArrayList<Book> mostExpensive(int k) {
+        update();
+        MyIntList rows = new MyIntList();
+        for (Node node = tail; node != null && rows.size() < k; node = node.previous) {
+            rows.add(node.row);
+        }
+        return columns.books(rows);
+    }
+
+    // Get number of books
+    public int size() {
+        return size;
+    }
+
+    // First node whose price is >= minCents, or null
+    private Node firstAtLeast(long minCents) {
+        Node node = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (node.next[i] != null && columns.getPriceCents(node.next[i].row) < minCents) {
+                node = node.next[i];
+            }
+        }
+        return node.next[0];
+    }
+
+    private int compare(int a, int b) {
+        int byPrice = Long.compare(columns.getPriceCents(a), columns.getPriceCents(b));
+        return byPrice != 0 ? byPrice : Integer.compare(columns.getId(a), columns.getId(b));
+    }
+
+    // Each level is kept with probability 1/4 (xorshift random bits, two per level)
+    private int randomLevel() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+
+        int newLevel = 1;
+        long bits = seed;
+        while (newLevel < MAX_LEVEL && (bits & 3) == 0) {
+            newLevel++;
+            bits >>>= 2;
+        }
+        return newLevel;
+    }
+}
+
+// Inverted index over book titles and authors
+// Word postings answer keyword searches, 3-gram postings answer substring searches.
+// Document IDs are catalog rows, added in row order, so every posting list stays sorted. Rows added to
+// the columns are indexed by the next search, so opening a large catalog doesn't pay for the index.
+class BookTextIndex {
+    private static final int GRAM_LENGTH = 3;
+
+    private final ParallelCatalog parallel; // runs the scans over many titles
+    private final BookColumns columns;      // doc ID -> book
+
+    private final MyArrayList<String> lowerTitles = new MyArrayList<>();  // doc ID -> lowercase title
+    private final MyArrayList<String> lowerAuthors = new MyArrayList<>(); // doc ID -> lowercase author
+    private final MyHashMap<String, MyIntList> titleGrams = new MyHashMap<>();
+    private final MyHashMap<String, MyIntList> authorGrams = new MyHashMap<>();
+    private final MyHashMap<String, MyIntList> words = new MyHashMap<>(); // title and author words
+
+    public BookTextIndex(ParallelCatalog parallel, BookColumns columns) {
+        this.parallel = parallel;
+        this.columns = columns;
+    }
+
+    // Index the rows added to the columns since the last update
+    public void update() {
+        while (lowerTitles.size() < columns.size()) {
+            add(lowerTitles.size());
+        }
+    }
+
+    // Index the next catalog row
+    private void add(int doc) {
+        String title = columns.getTitle(doc).toLowerCase();
+        String author = columns.getAuthor(doc).toLowerCase();
+
+        lowerTitles.add(title);
+        lowerAuthors.add(author);
+
+        addGrams(titleGrams, title, doc);
+        addGrams(authorGrams, author, doc);
+        addWords(title, doc);
+        addWords(author, doc);
+    }
+
+    // Find books whose title contains the text (case-insensitive)
+    public MyArrayList<Book> findByTitle(String text) {
+        update();
+        return findContaining(titleGrams, lowerTitles, text.toLowerCase());
+    }
+
+    // Find books whose author contains the text (case-insensitive)
+    public MyArrayList<Book> findByAuthor(String text) {
+        update();
+        return findContaining(authorGrams, lowerAuthors, text.toLowerCase());
+    }
+
+    // Find books where every word of the query appears in the title or author
+    public MyArrayList<Book> findByKeywords(String query) {
+        update();
+        MyArrayList<String> queryWords = splitWords(query.toLowerCase());
+        MyArrayList<Book> result = new MyArrayList<>();
+        if (queryWords.isEmpty()) {
+            return result;
+        }
+
+        MyArrayList<MyIntList> postings = new MyArrayList<>();
+        for (int i = 0; i < queryWords.size(); i++) {
+            MyIntList posting = words.get(queryWords.get(i));
+            if (posting == null) {
+                return result;
+            }
+            postings.add(posting);
+        }
+
+        return columns.books(intersectAll(postings));
+    }
+
+    // Substring search: intersect the query's 3-grams, then verify the candidates
+    private MyArrayList<Book> findContaining(MyHashMap<String, MyIntList> grams,
+                                             MyArrayList<String> lowerText, String query) {
+        MyArrayList<Book> result = new MyArrayList<>();
+
+        // Too short to have a 3-gram - scan the cached lowercase strings instead
+        if (query.length() < GRAM_LENGTH) {
+            return columns.books(parallel.filterIndexes(lowerText.size(), doc -> lowerText.get(doc).contains(query)));
+        }
+
+        MyArrayList<MyIntList> postings = new MyArrayList<>();
+        for (int i = 0; i + GRAM_LENGTH <= query.length(); i++) {
+            MyIntList posting = grams.get(query.substring(i, i + GRAM_LENGTH));
+            if (posting == null) {
+                return result;
+            }
+            postings.add(posting);
+        }
+
+        // Having every 3-gram doesn't guarantee they are adjacent, so check each candidate
+        MyIntList candidates = intersectAll(postings);
+        MyIntList matches = parallel.filterIndexes(candidates.size(),
+                i -> lowerText.get(candidates.get(i)).contains(query));
+        for (int i = 0; i < matches.size(); i++) {
+            result.add(columns.book(candidates.get(matches.get(i))));
+        }
+        return result;
+    }
+
+    // Intersect posting lists, shortest first so intermediate results stay small
+    private static MyIntList intersectAll(MyArrayList<MyIntList> postings) {
+        postings.sort((a, b) -> Integer.compare(a.size(), b.size()));
+
+        MyIntList result = postings.get(0);
+        for (int i = 1; i < postings.size() && !result.isEmpty(); i++) {
+            result = MyIntList.intersect(result, postings.get(i));
+        }
+        return result;
+    }
+
+    // Add every 3-gram of the text to the postings
+    private static void addGrams(MyHashMap<String, MyIntList> grams, String text, int doc) {
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            addPosting(grams, text.substring(i, i + GRAM_LENGTH), doc);
+        }
+    }
+
+    // Add every word of the text to the word postings
+    private void addWords(String text, int doc) {
+        MyArrayList<String> textWords = splitWords(text);
+        for (int i = 0; i < textWords.size(); i++) {
+            addPosting(words, textWords.get(i), doc);
+        }
+    }
+
+    // Append a document to a posting list, skipping repeats within the same document
+    private static void addPosting(MyHashMap<String, MyIntList> postings, String key, int doc) {
+        MyIntList posting = postings.get(key);
+        if (posting == null) {
+            posting = new MyIntList();
+            postings.put(key, posting);
+        }
+        if (posting.isEmpty() || posting.last() != doc) {
+            posting.add(doc);
+        }
+    }
+
+    // Split text into runs of letters and digits
+    private static MyArrayList<String> splitWords(String text) {
+        MyArrayList<String> result = new MyArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                result.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return result;
+    }
+}
+
+// Bounded cache of search results with LRU or W-TinyLFU eviction
+// Each entry is stamped with the catalog version it was computed against, and a lookup with a newer
+// version treats it as a miss. Under W-TinyLFU, new entries go into a small LRU window. An entry that
+// falls out of the window only joins the main segmented LRU if a frequency sketch says it is asked
+// for more often than the main area's next victim, so a burst of one-off queries can't flush the
+// popular ones out the way it does with plain LRU.
+class SearchCache<V> {
+    static final int POLICY_LRU = 1;
+    static final int POLICY_TINY_LFU = 2;
+    static final String[] POLICY_NAMES = {"", "LRU", "W-TinyLFU"};
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static class Node<V> {
+        final String key;
+        V value;
+        int version;
+        int segment;
+        Node<V> prev;
+        Node<V> next;
+
+        Node(String key) {
+            this.key = key;
+        }
+    }
+
+    // Circular list around a sentinel, least recently used first
+    private static class Segment<V> {
+        final Node<V> head = new Node<>(null);
+        int size;
+
+        Segment() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        Node<V> first() {
+            return size == 0 ? null : head.next;
+        }
+
+        void addLast(Node<V> node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            size++;
+        }
+
+        void remove(Node<V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            size--;
+        }
+    }
+
+    // Approximate access counts for admission: a count-min sketch of four rows of saturating
+    // counters, all halved every sampleSize increments so old popularity fades
+    private static class FrequencySketch {
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+        private static final int MAX_COUNT = 15;
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity * 4) - 1) << 1;
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new byte[width];
+            }
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        void increment(int hash) {
+            for (int i = 0; i < rows.length; i++) {
+                int index = index(hash, i);
+                if (rows[i][index] < MAX_COUNT) {
+                    rows[i][index]++;
+                }
+            }
+            if (++additions >= sampleSize) {
+                for (byte[] row : rows) {
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int min = MAX_COUNT;
+            for (int i = 0; i < rows.length; i++) {
+                min = Math.min(min, rows[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ (hash >>> 16)) * SEEDS[row];
+            return (h ^ (h >>> 15)) & mask;
+        }
+    }
+
+    private final int policy;
+    private final int capacity;
+    private final int windowCapacity;    // all of the capacity under LRU
+    private final int protectedCapacity; // share of the main area for entries hit again after admission
+    private final MyHashMap<String, Node<V>> entries = new MyHashMap<>();
+    private final Segment<V> window = new Segment<>();
+    private final Segment<V> probation = new Segment<>();
+    private final Segment<V> protectedSegment = new Segment<>();
+    private final FrequencySketch sketch; // null under LRU
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public SearchCache(int policy, int capacity) {
+        if (policy != POLICY_LRU && policy != POLICY_TINY_LFU) {
+            throw new IllegalArgumentException("Unknown cache policy: " + policy);
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.policy = policy;
+        this.capacity = capacity;
+        if (policy == POLICY_LRU) {
+            windowCapacity = capacity;
+            protectedCapacity = 0;
+            sketch = null;
+        } else {
+            windowCapacity = Math.max(1, capacity / 100);
+            protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+            sketch = new FrequencySketch(capacity);
+        }
+    }
+
+    // Cached value for the key if it was stored at this version, otherwise null
+    public synchronized V get(String key, int version) {
+        if (sketch != null) {
+            sketch.increment(key.hashCode());
+        }
+        Node<V> node = entries.get(key);
+        if (node == null || node.version != version) {
+            if (node != null) {
+                unlink(node);
+                entries.remove(key);
+            }
+            misses++;
+            return null;
+        }
+
+        hits++;
+        touch(node);
+        return node.value;
+    }
+
+    // Store a value computed at a catalog version, evicting an entry if the cache is full
+    public synchronized void put(String key, int version, V value) {
+        Node<V> node = entries.get(key);
+        if (node != null) {
+            node.value = value;
+            node.version = version;
+            touch(node);
+            return;
+        }
+
+        node = new Node<>(key);
+        node.value = value;
+        node.version = version;
+        node.segment = WINDOW;
+        entries.put(key, node);
+        window.addLast(node);
+        if (window.size <= windowCapacity) {
+            return;
+        }
+
+        Node<V> candidate = window.first();
+        window.remove(candidate);
+        if (sketch == null) {
+            evict(candidate);
+            return;
+        }
+        candidate.segment = PROBATION;
+        probation.addLast(candidate);
+        if (probation.size + protectedSegment.size <= capacity - windowCapacity) {
+            return;
+        }
+
+        // Main area is full: keep whichever of the candidate and the next victim is asked for more
+        Node<V> victim = probation.first() != candidate ? probation.first() : protectedSegment.first();
+        if (victim != null && sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+            evict(victim);
+        } else {
+            evict(candidate);
+        }
+    }
+
+    public int getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // Record a hit: move the entry to the most recent end, promoting it out of probation
+    private void touch(Node<V> node) {
+        if (node.segment == PROBATION) {
+            probation.remove(node);
+            node.segment = PROTECTED;
+            protectedSegment.addLast(node);
+            if (protectedSegment.size > protectedCapacity) {
+                Node<V> demoted = protectedSegment.first();
+                protectedSegment.remove(demoted);
+                demoted.segment = PROBATION;
+                probation.addLast(demoted);
+            }
+        } else {
+            Segment<V> segment = node.segment == WINDOW ? window : protectedSegment;
+            segment.remove(node);
+            segment.addLast(node);
+        }
+    }
+
+    private void evict(Node<V> node) {
+        if (node.prev != null) {
+            unlink(node);
+        }
+        entries.remove(node.key);
+        evictions++;
+    }
+
+    private void unlink(Node<V> node) {
+        Segment<V> segment = node.segment == WINDOW ? window : node.segment == PROBATION ? probation : protectedSegment;
+        segment.remove(node);
+    }
+}
+
+// Background fulfilment engine: a pool of worker threads draining the order queue
+class OrderFulfilmentEngine {
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private final BlockingQueueADT<Order> queue;
+    private final Consumer<Order> processor;
+    private final MyArrayList<Worker> workers = new MyArrayList<>();
+    private final LongAdder processedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private int nextWorkerNumber = 1;
+    private long startNanos;
+    private long lastReportNanos;
+    private long lastReportCount;
+
+    // One worker thread, stopped by clearing its own flag so the pool can shrink one at a time
+    private class Worker implements Runnable {
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        Worker(int number) {
+            thread = new Thread(this, "fulfilment-worker-" + number);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    Order order = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    if (order != null) {
+                        process(order);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // A failing order is reported and counted, the worker moves on to the next one
+        private void process(Order order) {
+            try {
+                processor.accept(order);
+                processedCount.increment();
+            } catch (RuntimeException e) {
+                failedCount.increment();
+                System.out.println("Warning: order " + order.getId() + " could not be processed: " + e);
+            }
+        }
+    }
+
+    public OrderFulfilmentEngine(BlockingQueueADT<Order> queue, Consumer<Order> processor) {
+        this.queue = queue;
+        this.processor = processor;
+    }
+
+    // Start the engine with the given number of workers
+    public synchronized void start(int workerCount) {
+        if (isRunning()) {
+            throw new IllegalStateException("Engine is already running");
+        }
+        startNanos = System.nanoTime();
+        lastReportNanos = startNanos;
+        processedCount.reset();
+        failedCount.reset();
+        lastReportCount = 0;
+        resize(workerCount);
+    }
+
+    // Stop all workers and wait for in-flight orders to finish
+    public synchronized void stop() {
+        resize(0);
+    }
+
+    // Grow or shrink the pool; removed workers finish their current order first
+    public synchronized void resize(int workerCount) {
+        if (workerCount < 0) {
+            throw new IllegalArgumentException("Worker count cannot be negative");
+        }
+
+        while (workers.size() < workerCount) {
+            Worker worker = new Worker(nextWorkerNumber++);
+            workers.add(worker);
+            worker.thread.start();
+        }
+
+        if (workers.size() > workerCount) {
+            MyArrayList<Worker> kept = new MyArrayList<>();
+            MyArrayList<Worker> stopping = new MyArrayList<>();
+            for (int i = 0; i < workers.size(); i++) {
+                Worker worker = workers.get(i);
+                if (i < workerCount) {
+                    kept.add(worker);
+                } else {
+                    worker.running = false;
+                    stopping.add(worker);
+                }
+            }
+            for (int i = 0; i < stopping.size(); i++) {
+                joinQuietly(stopping.get(i).thread);
+            }
+            workers.copyFrom(kept);
+        }
+    }
+
+    // Check if any workers are running
+    public synchronized boolean isRunning() {
+        return !workers.isEmpty();
+    }
+
+    // Get number of workers
+    public synchronized int getWorkerCount() {
+        return workers.size();
+    }
+
+    // Describe the pool and its throughput, overall and since the previous report
+    public synchronized String report() {
+        long now = System.nanoTime();
+        long processed = processedCount.sum();
+        double totalSeconds = (now - startNanos) / 1e9;
+        double recentSeconds = (now - lastReportNanos) / 1e9;
+        long recentProcessed = processed - lastReportCount;
+
+        lastReportNanos = now;
+        lastReportCount = processed;
+
+        return String.format("Workers: %d | Processed: %d | Failed: %d | Average: %.1f orders/sec | Since last report: %.1f orders/sec",
+                workers.size(), processed, failedCount.sum(),
+                totalSeconds > 0 ? processed / totalSeconds : 0.0,
+                recentSeconds > 0 ? recentProcessed / recentSeconds : 0.0);
+    }
+
+    // Wait for a thread to finish, keeping the caller's interrupt status
+    private static void joinQuietly(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// Fork/join versions of the catalog-wide operations: sorting, filtering and summing
+// Work is split in halves until a piece is at or below the cutoff, which then runs the plain loop.
+// Results are identical to the sequential paths: the sort is the same stable merge sort, filters
+// join their halves left to right so matches keep their order, and sums are exact long arithmetic.
+class ParallelCatalog {
+    static final int DEFAULT_CUTOFF = 16_384;
+
+    private volatile ForkJoinPool pool;
+    private volatile int cutoff;
+
+    public ParallelCatalog(int parallelism, int cutoff) {
+        setParallelism(parallelism);
+        setCutoff(cutoff);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    // Replace the pool and shut the old one down. It still finishes the tasks it has accepted; a
+    // caller that read it just before the swap is rejected and retries on the new one (see invoke).
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        ForkJoinPool old = pool;
+        pool = new ForkJoinPool(parallelism);
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    public int getCutoff() {
+        return cutoff;
+    }
+
+    // Pieces of this size or smaller run sequentially
+    public void setCutoff(int cutoff) {
+        if (cutoff < 1) {
+            throw new IllegalArgumentException("Cutoff must be at least 1");
+        }
+        this.cutoff = cutoff;
+    }
+
+    // Sort the list, same order as list.sort
+    public <T> void sort(MyArrayList<T> list, Comparator<? super T> comparator) {
+        invoke(current -> {
+            list.parallelSort(comparator, current, cutoff);
+            return null;
+        });
+    }
+
+    // Indexes in [0, count) that pass the test, ascending
+    public MyIntList filterIndexes(int count, IntPredicate test) {
+        if (count <= cutoff) {
+            return FilterTask.scan(0, count, test);
+        }
+        return invoke(current -> current.invoke(new FilterTask(0, count, test, cutoff)));
+    }
+
+    // Sum of a long key over the list
+    public <T> long sum(MyArrayList<T> list, ToLongFunction<? super T> key) {
+        if (list.size() <= cutoff) {
+            return SumTask.add(list, 0, list.size(), key);
+        }
+        return invoke(current -> current.invoke(new SumTask<>(list, 0, list.size(), key, cutoff)));
+    }
+
+    // Stop the pool's threads
+    public synchronized void shutdown() {
+        pool.shutdown();
+    }
+
+    // Run on the current pool; if it was swapped out and shut down before the work reached it, the
+    // work was rejected untouched and runs on the pool that replaced it
+    private <R> R invoke(Function<ForkJoinPool, R> work) {
+        while (true) {
+            ForkJoinPool current = pool;
+            try {
+                return work.apply(current);
+            } catch (RejectedExecutionException e) {
+                if (current == pool) {
+                    throw e; // shut down for good, not replaced
+                }
+            }
+        }
+    }
+
+    private static class FilterTask extends RecursiveTask<MyIntList> {
+        private static final long serialVersionUID = 1L;
+
+        private final int lo;
+        private final int hi;
+        private final IntPredicate test;
+        private final int cutoff;
+
+        FilterTask(int lo, int hi, IntPredicate test, int cutoff) {
+            this.lo = lo;
+            this.hi = hi;
+            this.test = test;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected MyIntList compute() {
+            if (hi - lo <= cutoff) {
+                return scan(lo, hi, test);
+            }
+            int mid = (lo + hi) >>> 1;
+            FilterTask right = new FilterTask(mid, hi, test, cutoff);
+            right.fork();
+            MyIntList result = new FilterTask(lo, mid, test, cutoff).compute();
+            result.addAll(right.join());
+            return result;
+        }
+
+        static MyIntList scan(int lo, int hi, IntPredicate test) {
+            MyIntList result = new MyIntList();
+            for (int i = lo; i < hi; i++) {
+                if (test.test(i)) {
+                    result.add(i);
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class SumTask<T> extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final MyArrayList<T> list;
+        private final int lo;
+        private final int hi;
+        private final ToLongFunction<? super T> key;
+        private final int cutoff;
+
+        SumTask(MyArrayList<T> list, int lo, int hi, ToLongFunction<? super T> key, int cutoff) {
+            this.list = list;
+            this.lo = lo;
+            this.hi = hi;
+            this.key = key;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        protected Long compute() {
+            if (hi - lo <= cutoff) {
+                return add(list, lo, hi, key);
+            }
+            int mid = (lo + hi) >>> 1;
+            SumTask<T> right = new SumTask<>(list, mid, hi, key, cutoff);
+            right.fork();
+            long left = new SumTask<>(list, lo, mid, key, cutoff).compute();
+            return left + right.join();
+        }
+
+        static <T> long add(MyArrayList<T> list, int lo, int hi, ToLongFunction<? super T> key) {
+            long total = 0;
+            for (int i = lo; i < hi; i++) {
+                total += key.applyAsLong(list.get(i));
+            }
+            return total;
+        }
+    }
+}
+
+// Running sales figures, updated as each order is processed so reports never rescan the history
+// Units and revenue are kept per book and per author in hash maps. The best sellers are a min-heap
+// of the TOP_CAPACITY highest unit counts, and the top authors a second one by revenue: both figures
+// only grow, so an entry outside a heap can only get in by passing the heap's smallest value, which
+// keeps each top list exact.
+class SalesAnalytics {
+    static final int TOP_CAPACITY = 100;
+
+    // Figures for one book or one author, handed out as immutable copies
+    static class Sales {
+        private final String name;
+        private final Book book; // null for an author
+        private final long units;
+        private final long revenueCents;
+
+        Sales(String name, Book book, long units, long revenueCents) {
+            this.name = name;
+            this.book = book;
+            this.units = units;
+            this.revenueCents = revenueCents;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Book getBook() {
+            return book;
+        }
+
+        public long getUnits() {
+            return units;
+        }
+
+        public long getRevenueCents() {
+            return revenueCents;
+        }
+    }
+
+    // Running counters, guarded by the SalesAnalytics lock
+    private static class Counter {
+        final Book book; // null for an author
+        final String author;
+        long units;
+        long revenueCents;
+        int heapIndex = -1; // position in its top heap, -1 if not in it
+
+        Counter(Book book, String author) {
+            this.book = book;
+            this.author = author;
+        }
+
+        Sales snapshot() {
+            return new Sales(book != null ? book.getTitle() : author, book, units, revenueCents);
+        }
+    }
+
+    // Min-heap of the TOP_CAPACITY counters with the highest key, guarded by the SalesAnalytics lock
+    // Keys must only grow; a counter belongs to at most one heap since it keeps a single heapIndex.
+    private static class TopHeap {
+        private final Counter[] heap = new Counter[TOP_CAPACITY];
+        private final ToLongFunction<Counter> key;
+        private int size;
+
+        TopHeap(ToLongFunction<Counter> key) {
+            this.key = key;
+        }
+
+        // Keep the heap holding the highest keys after a counter's key grew
+        void update(Counter counter) {
+            if (counter.heapIndex >= 0) {
+                siftDown(counter.heapIndex); // a larger key moves away from the minimum
+            } else if (size < TOP_CAPACITY) {
+                heap[size] = counter;
+                counter.heapIndex = size;
+                siftUp(size++);
+            } else if (key.applyAsLong(counter) > key.applyAsLong(heap[0])) {
+                heap[0].heapIndex = -1;
+                heap[0] = counter;
+                counter.heapIndex = 0;
+                siftDown(0);
+            }
+        }
+
+        void snapshotInto(MyArrayList<Sales> out) {
+            for (int i = 0; i < size; i++) {
+                out.add(heap[i].snapshot());
+            }
+        }
+
+        private void siftUp(int index) {
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (key.applyAsLong(heap[index]) >= key.applyAsLong(heap[parent])) {
+                    break;
+                }
+                swap(index, parent);
+                index = parent;
+            }
+        }
+
+        private void siftDown(int index) {
+            while (true) {
+                int smallest = index;
+                int left = 2 * index + 1;
+                int right = left + 1;
+                if (left < size && key.applyAsLong(heap[left]) < key.applyAsLong(heap[smallest])) {
+                    smallest = left;
+                }
+                if (right < size && key.applyAsLong(heap[right]) < key.applyAsLong(heap[smallest])) {
+                    smallest = right;
+                }
+                if (smallest == index) {
+                    return;
+                }
+                swap(index, smallest);
+                index = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            Counter counter = heap[i];
+            heap[i] = heap[j];
+            heap[j] = counter;
+            heap[i].heapIndex = i;
+            heap[j].heapIndex = j;
+        }
+    }
+
+    private final MyIntHashMap<Counter> byBook = new MyIntHashMap<>();
+    private final MyHashMap<String, Counter> byAuthor = new MyHashMap<>();
+    private final TopHeap topBooks = new TopHeap(counter -> counter.units);
+    private final TopHeap topAuthors = new TopHeap(counter -> counter.revenueCents);
+    private long orderCount;
+    private long unitsSold;
+    private long revenueCents;
+
+    // Add a processed order to every figure, O(items)
+    public synchronized void record(Order order) {
+        orderCount++;
+        revenueCents += order.getTotalCents();
+
+        MyArrayList<OrderItem> items = order.getItems();
+        for (int i = 0; i < items.size(); i++) {
+            OrderItem item = items.get(i);
+            Book book = item.getBook();
+            long subtotal = item.getSubtotalCents();
+            unitsSold += item.getQuantity();
+
+            Counter bookCounter = byBook.get(book.getId());
+            if (bookCounter == null) {
+                bookCounter = new Counter(book, null);
+                byBook.put(book.getId(), bookCounter);
+            }
+            bookCounter.units += item.getQuantity();
+            bookCounter.revenueCents += subtotal;
+            topBooks.update(bookCounter);
+
+            Counter authorCounter = byAuthor.get(book.getAuthor());
+            if (authorCounter == null) {
+                authorCounter = new Counter(null, book.getAuthor());
+                byAuthor.put(book.getAuthor(), authorCounter);
+            }
+            authorCounter.units += item.getQuantity();
+            authorCounter.revenueCents += subtotal;
+            topAuthors.update(authorCounter);
+        }
+    }
+
+    public synchronized long getOrderCount() {
+        return orderCount;
+    }
+
+    public synchronized long getUnitsSold() {
+        return unitsSold;
+    }
+
+    public synchronized long getRevenueCents() {
+        return revenueCents;
+    }
+
+    // Figures for one book, or null if it hasn't sold
+    public synchronized Sales forBook(int bookId) {
+        Counter counter = byBook.get(bookId);
+        return counter != null ? counter.snapshot() : null;
+    }
+
+    // Figures for one author, or null if none of their books has sold
+    public synchronized Sales forAuthor(String author) {
+        Counter counter = byAuthor.get(author);
+        return counter != null ? counter.snapshot() : null;
+    }
+
+    // Up to k best sellers by units (k is capped at TOP_CAPACITY), best first
+    public MyArrayList<Sales> topSellers(int k) {
+        MyArrayList<Sales> top = new MyArrayList<>();
+        synchronized (this) {
+            topBooks.snapshotInto(top);
+        }
+        top.sort((a, b) -> a.getUnits() != b.getUnits()
+                ? Long.compare(b.getUnits(), a.getUnits())
+                : Integer.compare(a.getBook().getId(), b.getBook().getId()));
+        return firstK(top, k);
+    }
+
+    // Up to k authors with the highest revenue (k is capped at TOP_CAPACITY), highest first
+    // Sorts only the heap's entries, O(TOP_CAPACITY log TOP_CAPACITY) however many authors have sold.
+    public MyArrayList<Sales> topAuthors(int k) {
+        MyArrayList<Sales> top = new MyArrayList<>();
+        synchronized (this) {
+            topAuthors.snapshotInto(top);
+        }
+        top.sort((a, b) -> a.getRevenueCents() != b.getRevenueCents()
+                ? Long.compare(b.getRevenueCents(), a.getRevenueCents())
+                : a.getName().compareTo(b.getName()));
+        return firstK(top, k);
+    }
+
+    private static MyArrayList<Sales> firstK(MyArrayList<Sales> sorted, int k) {
+        MyArrayList<Sales> result = new MyArrayList<>();
+        for (int i = 0; i < sorted.size() && i < k; i++) {
+            result.add(sorted.get(i));
+        }
+        return result;
+    }
+}
+
+// Low-overhead instrumentation: counters, latency histograms and gauges, dumped as Prometheus text
+// ENABLED is read once from the bookstore.metrics system property (on unless set to false); it is a
+// static final, so with metrics off the JIT folds every recording call down to nothing.
+class Metrics {
+    static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("bookstore.metrics"));
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private interface Metric {
+        void writeTo(StringBuilder out);
+    }
+
+    // Monotonic count on a LongAdder: threads bump their own striped cell instead of contending on one
+    static final class Counter implements Metric {
+        private final String name;
+        private final String help;
+        private final LongAdder adder = new LongAdder();
+
+        private Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void increment() {
+            if (ENABLED) {
+                adder.increment();
+            }
+        }
+
+        public void add(long amount) {
+            if (ENABLED) {
+                adder.add(amount);
+            }
+        }
+
+        public long get() {
+            return adder.sum();
+        }
+
+        @Override
+        public void writeTo(StringBuilder out) {
+            header(out, name, help, "counter");
+            out.append(name).append(' ').append(adder.sum()).append('\n');
+        }
+    }
+
+    // Log-linear latency histogram in the style of HdrHistogram: 16 linear sub-buckets per power of
+    // two, so any recorded nanosecond value lands in a bucket within 1/16 (6.25%) of it.
+    // Recording is one array increment plus two adders, with no allocation and no lock.
+    static final class LatencyHistogram implements Metric {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final String name;
+        private final String help;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private LatencyHistogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        // Record the time elapsed since a startTimer() value
+        public void recordSince(long startNanos) {
+            if (ENABLED) {
+                record(System.nanoTime() - startNanos);
+            }
+        }
+
+        public void record(long nanos) {
+            if (!ENABLED) {
+                return;
+            }
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(bucket(value));
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        // Below 16 every value has its own bucket; above, the top 5 significant bits pick one
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        // Largest value that falls in a bucket
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        @Override
+        public void writeTo(StringBuilder out) {
+            // Copy the counts first so the quantiles agree with the total even while recording goes on
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            long largest = max.get();
+
+            header(out, name, help, "summary");
+            int bucket = 0;
+            long seen = 0;
+            for (double quantile : QUANTILES) {
+                long rank = (long) Math.ceil(quantile * total);
+                while (bucket < BUCKETS - 1 && seen + snapshot[bucket] < rank) {
+                    seen += snapshot[bucket++];
+                }
+                long nanos = total == 0 ? 0 : Math.min(upperBound(bucket), largest);
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ");
+                appendSeconds(out, nanos).append('\n');
+            }
+            appendSeconds(out.append(name).append("_sum "), sum.sum()).append('\n');
+            out.append(name).append("_count ").append(total).append('\n');
+            header(out, name + "_max", "Largest value recorded in " + name, "gauge");
+            appendSeconds(out.append(name).append("_max "), largest).append('\n');
+        }
+    }
+
+    // Value read when the metrics are dumped, such as a queue depth
+    private static final class Gauge implements Metric {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final LongSupplier value;
+
+        private Gauge(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        public void writeTo(StringBuilder out) {
+            header(out, name, help, type);
+            out.append(name).append(' ').append(value.getAsLong()).append('\n');
+        }
+    }
+
+    private final MyArrayList<Metric> metrics = new MyArrayList<>();
+
+    // Start time for LatencyHistogram.recordSince, without reading the clock when metrics are off
+    static long startTimer() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    public synchronized Counter counter(String name, String help) {
+        Counter counter = new Counter(name, help);
+        metrics.add(counter);
+        return counter;
+    }
+
+    public synchronized LatencyHistogram histogram(String name, String help) {
+        LatencyHistogram histogram = new LatencyHistogram(name, help);
+        metrics.add(histogram);
+        return histogram;
+    }
+
+    public synchronized void gauge(String name, String help, LongSupplier value) {
+        metrics.add(new Gauge(name, help, "gauge", value));
+    }
+
+    // A count kept elsewhere (it only ever grows), read when the metrics are dumped
+    public synchronized void counterFunction(String name, String help, LongSupplier value) {
+        metrics.add(new Gauge(name, help, "counter", value));
+    }
+
+    // Every metric in the Prometheus text exposition format
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (int i = 0; i < metrics.size(); i++) {
+            metrics.get(i).writeTo(out);
+        }
+        return out.toString();
+    }
+
+    // Write a scrape to a file, replacing it atomically so a collector never reads half of one
+    public void writeTo(Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, scrape().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // Nanoseconds as seconds with nine decimals, without going through a double
+    private static StringBuilder appendSeconds(StringBuilder out, long nanos) {
+        out.append(nanos / 1_000_000_000L).append('.');
+        String fraction = Long.toString(nanos % 1_000_000_000L);
+        for (int i = fraction.length(); i < 9; i++) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+}
+
+// Shared renderer for book and order listings
+// Every line is built in one reusable StringBuilder and copied out through a reusable char array,
+// so a listing allocates almost nothing; the writer underneath turns the lines into large writes.
+// Listings are either paged (the user is asked before each new page) or streamed straight through.
+class ListingRenderer {
+    // Asked between pages, returns false to stop the listing
+    interface PagePrompt {
+        boolean nextPage();
+    }
+
+    private final PrintWriter out;
+    private final PagePrompt prompt;
+    private final StringBuilder line = new StringBuilder(256);
+    private char[] chars = new char[256];
+    private int pageSize; // entries per page, 0 streams the whole listing
+    private int entriesOnPage;
+
+    public ListingRenderer(PrintWriter out, int pageSize, PagePrompt prompt) {
+        this.out = out;
+        this.pageSize = pageSize;
+        this.prompt = prompt;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        if (pageSize < 0) {
+            throw new IllegalArgumentException("Page size cannot be negative");
+        }
+        this.pageSize = pageSize;
+    }
+
+    // Start a new listing on a fresh page
+    public void begin() {
+        entriesOnPage = 0;
+    }
+
+    // Make room for one more entry, returns false if the user stopped at a page break
+    public boolean nextEntry() {
+        if (pageSize > 0 && entriesOnPage == pageSize) {
+            out.flush();
+            if (!prompt.nextPage()) {
+                return false;
+            }
+            entriesOnPage = 0;
+        }
+        entriesOnPage++;
+        return true;
+    }
+
+    // Finish the listing and push everything out
+    public void end() {
+        out.flush();
+    }
+
+    // One book on a line, after an optional prefix
+    public void book(String prefix, Book book) {
+        book.appendTo(line.append(prefix));
+        writeLine();
+    }
+
+    // Numbered order block, as shown in the queue and processed listings
+    public void order(int number, Order order) {
+        line.append("\nOrder #").append(number).append(':');
+        writeLine();
+        orderDetails(order, false);
+    }
+
+    // Order ID, customer, optionally the address, then items, status and total
+    public void orderDetails(Order order, boolean withAddress) {
+        line.append("ID: ").append(order.getId());
+        writeLine();
+        line.append("Customer: ").append(order.getCustomerName());
+        writeLine();
+        if (withAddress) {
+            line.append("Address: ").append(order.getAddress());
+            writeLine();
+        }
+        if (order.isExpress()) {
+            line.append("Express delivery");
+            writeLine();
+        }
+        orderItems(order);
+        line.append("Status: ").append(order.getStatus());
+        writeLine();
+        orderTotal(order);
+    }
+
+    // "Items:" followed by one line per item
+    public void orderItems(Order order) {
+        line.append("Items:");
+        writeLine();
+        MyArrayList<OrderItem> items = order.getItems();
+        for (int i = 0; i < items.size(); i++) {
+            OrderItem item = items.get(i);
+            line.append("- ").append(item.getBook().getTitle())
+                    .append(" x").append(item.getQuantity()).append(" ($");
+            Money.append(line, item.getSubtotalCents()).append(')');
+            writeLine();
+        }
+    }
+
+    public void orderTotal(Order order) {
+        Money.append(line.append("Total: $"), order.getTotalCents());
+        writeLine();
+    }
+
+    // Copy the finished line to the writer and reset the builder for the next one
+    private void writeLine() {
+        line.append('\n');
+        int length = line.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        line.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+        line.setLength(0);
+    }
+}
+
+// BookstoreSystem to handle the menu and operations
+class BookstoreSystem {
+    static final int SORT_BY_ID = 1;
+    static final int SORT_BY_TITLE = 2;
+    static final int SORT_BY_PRICE = 3;
+    private static final String[] SORT_NAMES = {"", "ID", "Title", "Price"};
+    static final int SCHEDULE_FIFO = 1;
+    static final int SCHEDULE_BY_TOTAL = 2;
+    static final int SCHEDULE_BY_ITEMS = 3;
+    static final int SCHEDULE_EXPRESS = 4;
+    static final int SCHEDULE_AGING = 5;
+    private static final String[] SCHEDULE_NAMES = {"", "First come, first served", "Smallest total first",
+            "Fewest items first", "Express first", "Fewest items first, with aging"};
+    private static final long AGING_ITEM_WEIGHT = 4; // each copy in an order counts as 4 later arrivals
+    private static final String ORDER_ID_FILE = "orders.ids";
+    private static final String ARCHIVE_FILE = "orders.archive";
+    private static final int RECENT_ORDERS = 10_000; // processed orders kept in memory, older ones are archived
+    private static final int DEFAULT_PAGE_SIZE = 20; // entries per page in listings
+    private static final int DEFAULT_SEARCH_CACHE_SIZE = 1024; // cached search results
+
+    // Catalog rows in a sort order, valid until the catalog changes
+    private static class SortedView {
+        final int[] rows;
+        final int catalogVersion;
+
+        SortedView(int[] rows, int catalogVersion) {
+            this.rows = rows;
+            this.catalogVersion = catalogVersion;
+        }
+    }
+
+    private final Scanner input = new Scanner(System.in);
+    private final ListingRenderer renderer = new ListingRenderer(new PrintWriter(new BufferedWriter(
+            new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16)), DEFAULT_PAGE_SIZE, this::askNextPage);
+    private final BookColumns bookColumns; // the catalog, Books are created per row on demand
+    private final ParallelCatalog parallel = new ParallelCatalog(
+            Runtime.getRuntime().availableProcessors(), ParallelCatalog.DEFAULT_CUTOFF);
+    private final BookTextIndex textIndex;   // built by the first text search
+    private final BookPriceIndex priceIndex; // built by the first price query
+    private final SortedView[] sortedViews = new SortedView[SORT_NAMES.length]; // indexed by sort key
+    // Listing order: these rows first, then every row added since in row order (null lists by row)
+    private int[] catalogOrder;
+    private int catalogVersion = 0; // bumped whenever a book is added
+    private int currentSort = 0;    // sort key catalogOrder was taken from, 0 if books were added since
+    // Bumped when a book is added or the catalog is re-sorted; cached search results from an older
+    // version are recomputed. Separate from catalogVersion so sorting doesn't drop the sorted views.
+    private int searchVersion = 0;
+    private SearchCache<MyArrayList<Book>> searchCache =
+            new SearchCache<>(SearchCache.POLICY_TINY_LFU, DEFAULT_SEARCH_CACHE_SIZE);
+    private final MyPriorityQueue<Order> orderQueue = new MyPriorityQueue<>(priorityKey(SCHEDULE_FIFO));
+    private int schedulePolicy = SCHEDULE_FIFO;
+    private final ProcessedOrderHistory processedOrders; // guarded by its own lock
+    private int loggedArchivedCount; // archive size at the last ARCHIVED record, guarded by the processedOrders lock
+    private final MyIntHashMap<Order> orderIndex = new MyIntHashMap<>(); // order ID -> order, guarded by its own lock
+    private final SalesAnalytics sales = new SalesAnalytics(); // fed by every processing path
+    private final Inventory inventory = new Inventory(); // reserved when ordered, committed when processed
+    private final Metrics metrics = new Metrics();
+    private final Metrics.LatencyHistogram searchLatency = metrics.histogram("bookstore_search_seconds",
+            "Time to answer a catalog search, cache hits included");
+    private final Metrics.LatencyHistogram sortLatency = metrics.histogram("bookstore_sort_seconds",
+            "Time to reorder the catalog");
+    private final Metrics.LatencyHistogram submitLatency = metrics.histogram("bookstore_order_submit_seconds",
+            "Time to append a placed order to the log");
+    private final Metrics.LatencyHistogram logWaitLatency = metrics.histogram("bookstore_order_log_wait_seconds",
+            "Time spent waiting for order log events to reach the disk");
+    private final Metrics.LatencyHistogram processLatency = metrics.histogram("bookstore_order_process_seconds",
+            "Time to process a single order, log sync included");
+    private final Metrics.LatencyHistogram batchLatency = metrics.histogram("bookstore_order_batch_seconds",
+            "Time to process a batch of orders, log sync included");
+    private final Metrics.Counter ordersPlaced = metrics.counter("bookstore_orders_placed_total", "Orders submitted");
+    private final Metrics.Counter ordersProcessed = metrics.counter("bookstore_orders_processed_total",
+            "Orders processed");
+    private final Metrics.Counter ordersCancelled = metrics.counter("bookstore_orders_cancelled_total",
+            "Pending orders cancelled");
+    private final Metrics.Counter booksAdded = metrics.counter("bookstore_books_added_total",
+            "Books added to the catalog");
+    private final OrderIdGenerator orderIds;
+    private final BookCatalogFile catalogFile;     // null when running without a catalog file
+    private final OrderLog orderLog;               // null when orders are not logged
+    private final OrderFulfilmentEngine engine = new OrderFulfilmentEngine(orderQueue, this::fulfilQueuedOrder);
+
+    // Constructor with some sample data, using array-backed collections
+    public BookstoreSystem() {
+        registerGauges();
+        processedOrders = new ProcessedOrderHistory(new MyArrayStack<>(), RECENT_ORDERS, null,
+                this::findBookById, this::unindexOrder);
+        catalogFile = null;
+        bookColumns = new BookColumns();
+        textIndex = new BookTextIndex(parallel, bookColumns);
+        priceIndex = new BookPriceIndex(bookColumns);
+        orderLog = null;
+        orderIds = new OrderIdGenerator(OrderIdGenerator.FIRST_ID);
+        MyArrayList<Book> samples = sampleBooks();
+        for (int i = 0; i < samples.size(); i++) {
+            addBook(samples.get(i));
+        }
+    }
+
+    // Constructor choosing the collections, and an optional catalog file and order log directory
+    public BookstoreSystem(boolean arrayBacked, Path catalogPath, Path orderLogPath) throws IOException {
+        registerGauges();
+
+        long start = System.nanoTime();
+        catalogFile = catalogPath != null ? BookCatalogFile.open(catalogPath) : null;
+        bookColumns = catalogFile != null ? new BookColumns(catalogFile) : new BookColumns();
+        textIndex = new BookTextIndex(parallel, bookColumns);
+        priceIndex = new BookPriceIndex(bookColumns);
+        loadCatalog(start);
+
+        // Books must be loaded first, recovered and archived orders refer to them by ID
+        orderLog = orderLogPath != null ? OrderLog.open(orderLogPath, this::findBookById) : null;
+
+        // Without an order directory, archived orders go to a temporary file
+        StackADT<Order> window = arrayBacked ? new MyArrayStack<>() : new MyStack<>();
+        processedOrders = orderLogPath != null
+                ? ProcessedOrderHistory.open(window, RECENT_ORDERS, orderLogPath.resolve(ARCHIVE_FILE),
+                        this::findBookById, this::unindexOrder)
+                : new ProcessedOrderHistory(window, RECENT_ORDERS, null, this::findBookById, this::unindexOrder);
+        if (orderLog != null) {
+            // New IDs continue above every recovered order, even if the ID file was lost
+            int highestId = recoverOrders();
+            orderIds = OrderIdGenerator.open(orderLogPath.resolve(ORDER_ID_FILE), highestId + 1);
+        } else {
+            orderIds = new OrderIdGenerator(OrderIdGenerator.FIRST_ID);
+        }
+    }
+
+    // Gauges are read when the metrics are dumped, not kept up to date on the hot paths
+    private void registerGauges() {
+        metrics.gauge("bookstore_order_queue_depth", "Orders waiting to be processed", orderQueue::size);
+        metrics.gauge("bookstore_processed_orders", "Processed orders, archived ones included",
+                () -> processedOrders.getTotalCount());
+        metrics.gauge("bookstore_processed_orders_in_memory", "Processed orders in the in-memory window",
+                () -> processedOrders.size());
+        metrics.gauge("bookstore_catalog_books", "Books in the catalog", () -> bookColumns.size());
+        metrics.gauge("bookstore_search_cache_entries", "Search results held by the cache", () -> searchCache.size());
+        metrics.counterFunction("bookstore_search_cache_hits_total", "Searches answered from the cache",
+                () -> searchCache.getHits());
+        metrics.counterFunction("bookstore_search_cache_misses_total", "Searches that had to be computed",
+                () -> searchCache.getMisses());
+        metrics.counterFunction("bookstore_search_cache_evictions_total", "Search results evicted to make room",
+                () -> searchCache.getEvictions());
+        metrics.counterFunction("bookstore_arraylist_resizes_total", "Times a MyArrayList grew its backing array",
+                MyArrayList::getResizeCount);
+        metrics.counterFunction("bookstore_arraylist_copied_elements_total", "Elements copied by MyArrayList growth",
+                MyArrayList::getCopiedElements);
+    }
+
+    // Seed a new (or absent) catalog file with the sample books. An existing file is not read here:
+    // rows are decoded from the mapping as they are asked for, and the ID, text and price indexes
+    // are built by the first lookup that needs them.
+    private void loadCatalog(long start) throws IOException {
+        if (catalogFile == null || catalogFile.size() == 0) {
+            storeBooks(sampleBooks());
+            return;
+        }
+        System.out.println("Opened the catalog file with " + catalogFile.size() + " books in " +
+                (System.nanoTime() - start) / 1_000_000 + " ms.");
+    }
+
+    // Put the stock levels and orders recovered from the log back, pending orders holding their
+    // reservations again; returns the highest recovered order ID (0 if there are none)
+    private int recoverOrders() throws IOException {
+        MyArrayList<long[]> stock = orderLog.getRecoveredStock();
+        for (int i = 0; i < stock.size(); i++) {
+            inventory.restoreStock((int) stock.get(i)[0], stock.get(i)[1]);
+        }
+
+        int highestId = 0;
+        MyArrayList<Order> pending = orderLog.getRecoveredPending();
+        for (int i = 0; i < pending.size(); i++) {
+            inventory.restoreReservations(pending.get(i));
+            orderQueue.enqueue(pending.get(i));
+            highestId = Math.max(highestId, indexOrder(pending.get(i)));
+        }
+        // The log no longer holds archived orders: their sales and IDs are read back from the archive,
+        // which is all the history holds before the restore, a chunk at a time
+        processedOrders.alignArchive(orderLog.getArchivedCount(), orderLog.getArchivedThrough());
+        checkArchive();
+        for (Order order : processedOrders) {
+            highestId = Math.max(highestId, order.getId());
+            sales.record(order);
+        }
+        MyArrayList<Order> processed = orderLog.getRecoveredProcessed();
+        for (int i = 0; i < processed.size(); i++) {
+            highestId = Math.max(highestId, processed.get(i).getId());
+            sales.record(processed.get(i));
+        }
+        // Only the orders left in the in-memory window are indexed, archived ones are looked up on disk
+        synchronized (processedOrders) {
+            loggedArchivedCount = processedOrders.getArchivedCount();
+            processedOrders.restore(processed, orderLog.getRecoveredPositions(), orderLog.getProcessedCount());
+            logArchived();
+        }
+        checkArchive();
+        MyArrayList<Order> inMemory = processedOrders.recent();
+        for (int i = 0; i < inMemory.size(); i++) {
+            indexOrder(inMemory.get(i));
+        }
+
+        if (!pending.isEmpty() || processedOrders.getTotalCount() > 0) {
+            System.out.println("Recovered " + pending.size() + " pending and " + processedOrders.getTotalCount() +
+                    " processed orders from the order log (" + processedOrders.getArchivedCount() + " archived).");
+        }
+        if (orderLog.getSkippedOrders() > 0) {
+            System.out.println("Skipped " + orderLog.getSkippedOrders() +
+                    " logged orders that refer to books no longer in the catalog.");
+        }
+        orderLog.releaseRecovered();
+        return highestId;
+    }
+
+    // Stop background work and close the files
+    void shutdown() {
+        engine.stop();
+        try {
+            if (orderLog != null) {
+                orderLog.close();
+            }
+            processedOrders.close();
+            orderIds.close();
+            parallel.shutdown();
+            if (catalogFile != null) {
+                catalogFile.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Warning: could not close data files cleanly: " + e.getMessage());
+        }
+    }
+
+    // Some initial books
+    private static MyArrayList<Book> sampleBooks() {
+        MyArrayList<Book> books = new MyArrayList<>();
+        books.add(new Book(101, "Java Programming", "John Smith", 29.99));
+        books.add(new Book(102, "Data Structures", "Jane Doe", 34.99));
+        books.add(new Book(103, "Algorithms", "Alan Turing", 24.99));
+        books.add(new Book(104, "Database Design", "Oracle Team", 39.99));
+        books.add(new Book(105, "Web Development", "Tim Lee", 27.99));
+        return books;
+    }
+
+    // Add a book to the catalog, the text and price indexes pick it up on their next query
+    void addBook(Book book) {
+        bookColumns.add(book);
+        catalogVersion++;
+        searchVersion++;
+        currentSort = 0;
+        booksAdded.increment();
+    }
+
+    // Priority key for a scheduling policy, smaller keys are processed first
+    // Aging adds the arrival number to the size, so a large order is overtaken by at most
+    // AGING_ITEM_WEIGHT later arrivals per copy and can never starve.
+    private static MyPriorityQueue.PriorityKey<Order> priorityKey(int policy) {
+        switch (policy) {
+            case SCHEDULE_BY_TOTAL:
+                return (order, arrival) -> order.getTotalCents();
+            case SCHEDULE_BY_ITEMS:
+                return (order, arrival) -> order.getTotalQuantity();
+            case SCHEDULE_EXPRESS:
+                return (order, arrival) -> order.isExpress() ? 0 : 1;
+            case SCHEDULE_AGING:
+                return (order, arrival) -> arrival + AGING_ITEM_WEIGHT * order.getTotalQuantity();
+            default:
+                return (order, arrival) -> arrival;
+        }
+    }
+
+    // Change the order scheduling policy, already queued orders are reordered too
+    void setSchedulePolicy(int policy) {
+        if (policy < SCHEDULE_FIFO || policy > SCHEDULE_AGING) {
+            throw new IllegalArgumentException("Unknown scheduling policy: " + policy);
+        }
+        orderQueue.setPriorityKey(priorityKey(policy));
+        schedulePolicy = policy;
+    }
+
+    // Main menu method
+    public void runMenu() {
+        int choice = -1;
+
+        do {
+            System.out.println("\n===== ONLINE BOOKSTORE SYSTEM =====");
+            System.out.println("1. Display all books");
+            System.out.println("2. Add a new book");
+            System.out.println("3. Search for a book");
+            System.out.println("4. Sort books");
+            System.out.println("5. Place an order");
+            System.out.println("6. Process next order");
+            System.out.println("7. Display order queue");
+            System.out.println("8. Display processed orders");
+            System.out.println("9. Fulfilment engine");
+            System.out.println("10. Process orders in batch");
+            System.out.println("11. Order scheduling policy");
+            System.out.println("12. Find an order by ID");
+            System.out.println("13. Listing page size");
+            System.out.println("14. Sales report");
+            System.out.println("15. Parallel processing settings");
+            System.out.println("16. Cancel an order");
+            System.out.println("17. Stock levels");
+            System.out.println("18. Search cache");
+            System.out.println("19. Metrics");
+            System.out.println("0. Exit");
+            System.out.print("Enter your choice: ");
+
+            try {
+                choice = Integer.parseInt(input.nextLine());
+            } catch (NumberFormatException e) {
+                System.out.println("Please enter a valid number!");
+                continue;
+            }
+
+            switch (choice) {
                 case 1:
                     displayBooks();
                     break;
@@ -333,395 +5800,2786 @@ class BookstoreSystem {
                     displayProcessedOrders();
                     break;
                 case 9:
+                    manageEngine();
+                    break;
+                case 10:
+                    processOrderBatch();
+                    break;
+                case 11:
+                    chooseSchedulePolicy();
+                    break;
+                case 12:
+                    findOrder();
+                    break;
+                case 13:
+                    choosePageSize();
+                    break;
+                case 14:
+                    salesReport();
+                    break;
+                case 15:
+                    configureParallelism();
+                    break;
+                case 16:
+                    cancelOrderById();
+                    break;
+                case 17:
+                    manageStock();
+                    break;
+                case 18:
+                    configureSearchCache();
+                    break;
+                case 19:
+                    showMetrics();
+                    break;
+                case 0:
+                    shutdown();
                     System.out.println("Thank you for using the Bookstore System. Goodbye!");
                     break;
-                default:
-                    System.out.println("Invalid choice. Please try again.");
+                default:
+                    System.out.println("Invalid choice. Please try again.");
+            }
+
+        } while (choice != 0);
+    }
+
+    // Display all books
+    private void displayBooks() {
+        System.out.println("\n===== BOOK LIST =====");
+        if (bookColumns.size() == 0) {
+            System.out.println("No books available.");
+            return;
+        }
+
+        renderer.begin();
+        for (int i = 0; i < bookColumns.size() && renderer.nextEntry(); i++) {
+            renderer.book("", bookColumns.book(listedRow(i)));
+        }
+        renderer.end();
+    }
+
+    // Row listed at a position of the catalog listing
+    private int listedRow(int position) {
+        return catalogOrder != null && position < catalogOrder.length ? catalogOrder[position] : position;
+    }
+
+    // Ask whether to show the next page of a listing
+    private boolean askNextPage() {
+        System.out.print("-- More (Enter to continue, q to stop) -- ");
+        return !input.nextLine().trim().equalsIgnoreCase("q");
+    }
+
+    // Change how many entries a listing shows before asking to continue
+    private void choosePageSize() {
+        System.out.println("\n===== LISTING PAGE SIZE =====");
+        int current = renderer.getPageSize();
+        System.out.println("Current: " + (current == 0 ? "no pages, listings stream straight through" : current + " entries per page"));
+        System.out.print("Enter entries per page (0 to stream, Enter to keep): ");
+
+        String line = input.nextLine().trim();
+        if (line.isEmpty()) {
+            return;
+        }
+        try {
+            renderer.setPageSize(Integer.parseInt(line));
+            System.out.println("Page size updated.");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid page size.");
+        }
+    }
+
+    // Add a new book
+    private void addNewBook() {
+        System.out.println("\n===== ADD NEW BOOK =====");
+
+        System.out.print("Enter book ID: ");
+        int id = 0;
+        try {
+            id = Integer.parseInt(input.nextLine());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid ID format. Operation cancelled.");
+            return;
+        }
+
+        // Check if ID already exists
+        if (bookColumns.rowOf(id) >= 0) {
+            System.out.println("A book with this ID already exists!");
+            return;
+        }
+
+        System.out.print("Enter title: ");
+        String title = input.nextLine();
+
+        System.out.print("Enter author: ");
+        String author = input.nextLine();
+
+        System.out.print("Enter price: $");
+        long priceCents = 0;
+        try {
+            priceCents = Money.parseCents(input.nextLine());
+            if (priceCents <= 0) {
+                System.out.println("Price must be positive. Operation cancelled.");
+                return;
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid price format. Operation cancelled.");
+            return;
+        }
+
+        if (!canStore(title, author)) {
+            System.out.println("Title or author is too long for the catalog file. Operation cancelled.");
+            return;
+        }
+
+        // Save to the catalog file first, so a book is never shown that wasn't stored
+        MyArrayList<Book> newBooks = new MyArrayList<>();
+        newBooks.add(Book.ofCents(id, title, author, priceCents));
+        try {
+            storeBooks(newBooks);
+        } catch (IOException e) {
+            System.out.println("Could not save the book: " + e.getMessage());
+            return;
+        }
+        System.out.println("Book added successfully!");
+    }
+
+    // Search for a book
+    private void searchBook() {
+        System.out.println("\n===== SEARCH BOOK =====");
+        System.out.println("1. Search by ID");
+        System.out.println("2. Search by Title");
+        System.out.println("3. Search by Author");
+        System.out.println("4. Search by Keywords");
+        System.out.println("5. Search by Price Range");
+        System.out.println("6. Cheapest books");
+        System.out.println("7. Most expensive books");
+        System.out.print("Enter your choice: ");
+
+        int choice = 0;
+        try {
+            choice = Integer.parseInt(input.nextLine());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid choice. Search cancelled.");
+            return;
+        }
+
+        if (choice == 1) {
+            System.out.print("Enter book ID: ");
+            try {
+                int id = Integer.parseInt(input.nextLine());
+                long start = Metrics.startTimer();
+                Book book = findBookById(id);
+                searchLatency.recordSince(start);
+
+                if (book != null) {
+                    System.out.println("Book found: " + book);
+                } else {
+                    System.out.println("No book found with ID: " + id);
+                }
+
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid ID format.");
+            }
+        } else if (choice == 2) {
+            System.out.print("Enter title (or part of title): ");
+            String title = input.nextLine().toLowerCase();
+            MyArrayList<Book> results = cachedSearch("title:" + title, () -> findBooksByTitle(title));
+
+            if (!printSearchResults(results)) {
+                System.out.println("No books found with title containing: " + title);
+            }
+        } else if (choice == 3) {
+            System.out.print("Enter author (or part of name): ");
+            String author = input.nextLine().toLowerCase();
+            MyArrayList<Book> results = cachedSearch("author:" + author, () -> textIndex.findByAuthor(author));
+
+            if (!printSearchResults(results)) {
+                System.out.println("No books found with author containing: " + author);
+            }
+        } else if (choice == 4) {
+            System.out.print("Enter keywords: ");
+            String keywords = input.nextLine();
+            MyArrayList<Book> results = cachedSearch("keywords:" + keywords.toLowerCase(),
+                    () -> textIndex.findByKeywords(keywords));
+
+            if (!printSearchResults(results)) {
+                System.out.println("No books found matching all of: " + keywords);
+            }
+        } else if (choice == 5) {
+            searchByPriceRange();
+        } else if (choice == 6 || choice == 7) {
+            System.out.print("How many books: ");
+            try {
+                int k = Integer.parseInt(input.nextLine());
+                if (k <= 0) {
+                    System.out.println("Number of books must be positive.");
+                    return;
+                }
+                MyArrayList<Book> results = choice == 6
+                        ? cachedSearch("cheapest:" + k, () -> priceIndex.cheapest(k))
+                        : cachedSearch("dearest:" + k, () -> priceIndex.mostExpensive(k));
+                if (!printSearchResults(results)) {
+                    System.out.println("No books available.");
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid number format.");
+            }
+        } else {
+            System.out.println("Invalid choice.");
+        }
+    }
+
+    // Find books priced between a minimum and maximum (inclusive)
+    private void searchByPriceRange() {
+        long minCents;
+        long maxCents;
+        try {
+            System.out.print("Enter minimum price: $");
+            minCents = Money.parseCents(input.nextLine());
+            System.out.print("Enter maximum price: $");
+            maxCents = Money.parseCents(input.nextLine());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid price format.");
+            return;
+        }
+
+        // Descend the price index to the first match, then walk only the matches
+        MyArrayList<Book> results = cachedSearch("price:" + minCents + "-" + maxCents,
+                () -> priceIndex.findInRange(minCents, maxCents));
+        if (!printSearchResults(results)) {
+            System.out.println("No books found priced between $" + Money.format(minCents) +
+                    " and $" + Money.format(maxCents));
+        }
+    }
+
+    // Run a search through the result cache; cached lists are shared, so callers must not modify them
+    MyArrayList<Book> cachedSearch(String key, Supplier<MyArrayList<Book>> search) {
+        long start = Metrics.startTimer();
+        int version = searchVersion;
+        MyArrayList<Book> results = searchCache.get(key, version);
+        if (results == null) {
+            results = search.get();
+            searchCache.put(key, version, results);
+        }
+        searchLatency.recordSince(start);
+        return results;
+    }
+
+    // Look up a book by ID, or null if there is none
+    Book findBookById(int id) {
+        int row = bookColumns.rowOf(id);
+        return row >= 0 ? bookColumns.book(row) : null;
+    }
+
+    // Find books whose title contains the text (case-insensitive)
+    MyArrayList<Book> findBooksByTitle(String text) {
+        return textIndex.findByTitle(text);
+    }
+
+    // Print search results, returns false if there were none
+    private boolean printSearchResults(MyArrayList<Book> results) {
+        renderer.begin();
+        for (int i = 0; i < results.size() && renderer.nextEntry(); i++) {
+            renderer.book("Book found: ", results.get(i));
+        }
+        renderer.end();
+        return !results.isEmpty();
+    }
+
+    // Sort books
+    private void sortBooks() {
+        System.out.println("\n===== SORT BOOKS =====");
+        System.out.println("1. Sort by ID");
+        System.out.println("2. Sort by Title");
+        System.out.println("3. Sort by Price");
+        System.out.print("Enter your choice: ");
+
+        int choice = 0;
+        try {
+            choice = Integer.parseInt(input.nextLine());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid choice. Sort cancelled.");
+            return;
+        }
+
+        if (choice < SORT_BY_ID || choice > SORT_BY_PRICE) {
+            System.out.println("Invalid choice.");
+            return;
+        }
+
+        sortCatalog(choice);
+        System.out.println("Books sorted by " + SORT_NAMES[choice] + ".");
+
+        displayBooks();
+    }
+
+    // Reorder the listing by a sort key, reusing the cached sorted view while the catalog is unchanged
+    void sortCatalog(int sortKey) {
+        if (currentSort == sortKey) {
+            return;
+        }
+        long start = Metrics.startTimer();
+
+        SortedView view = sortedViews[sortKey];
+        if (view == null || view.catalogVersion != catalogVersion) {
+            // Numeric keys are radix sorted straight off the primitive columns
+            int[] rows = sortKey == SORT_BY_TITLE ? bookColumns.rowsSortedByTitle(parallel)
+                    : sortKey == SORT_BY_ID ? bookColumns.rowsSortedById() : bookColumns.rowsSortedByPrice();
+            view = new SortedView(rows, catalogVersion);
+            sortedViews[sortKey] = view;
+        }
+
+        // Views are never modified once built, so switching to one is just a reference
+        catalogOrder = view.rows;
+        currentSort = sortKey;
+        searchVersion++;
+        sortLatency.recordSince(start);
+    }
+
+    // Place an order
+    private void placeOrder() {
+        System.out.println("\n===== PLACE ORDER =====");
+
+        if (bookColumns.size() == 0) {
+            System.out.println("No books available to order.");
+            return;
+        }
+
+        System.out.print("Enter customer name: ");
+        String customerName = input.nextLine();
+
+        System.out.print("Enter shipping address: ");
+        String address = input.nextLine();
+
+        // Create a new order
+        Order order;
+        try {
+            order = createOrder(customerName, address);
+        } catch (IOException e) {
+            System.out.println("Could not save the order ID counter, no order was placed: " + e.getMessage());
+            return;
+        }
+
+        // List the catalog once, re-listing every pass is O(n) per added item
+        displayBooks();
+
+        boolean addingBooks = true;
+        while (addingBooks) {
+            System.out.print("\nEnter book ID to add to order (0 to finish, L to list books): ");
+            String line = input.nextLine().trim();
+            if (line.equalsIgnoreCase("l")) {
+                displayBooks();
+                continue;
+            }
+
+            int bookId = 0;
+            try {
+                bookId = Integer.parseInt(line);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid ID format.");
+                continue;
+            }
+
+            if (bookId == 0) {
+                addingBooks = false;
+                continue;
+            }
+
+            // Find the book
+            Book selectedBook = findBookById(bookId);
+
+            if (selectedBook == null) {
+                System.out.println("Book not found!");
+                continue;
+            }
+
+            System.out.print("Enter quantity: ");
+            int quantity = 0;
+            try {
+                quantity = Integer.parseInt(input.nextLine());
+                if (quantity <= 0) {
+                    System.out.println("Quantity must be positive.");
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid quantity format.");
+                continue;
+            }
+
+            if (!order.addBook(selectedBook, quantity)) {
+                System.out.println("Not enough stock - only " + availableCopies(bookId) + " available.");
+                continue;
+            }
+            System.out.println(selectedBook.getTitle() + " added to order.");
+        }
+
+        if (order.getItems().isEmpty()) {
+            System.out.println("Order cancelled - no books selected.");
+            return;
+        }
+
+        System.out.print("Express delivery? (y/n): ");
+        order.setExpress(input.nextLine().trim().equalsIgnoreCase("y"));
+
+        // Add order to queue, it is only queued (and reported as placed) once it is logged
+        try {
+            submitOrder(order);
+        } catch (IOException e) {
+            System.out.println("Order could not be saved, it was not placed: " + e.getMessage());
+            return;
+        }
+        System.out.println("Order placed successfully!");
+        System.out.println("Order ID: " + order.getId());
+        renderer.orderItems(order);
+        renderer.orderTotal(order);
+        renderer.end();
+    }
+
+    // Process next order in queue
+    private void processNextOrder() {
+        System.out.println("\n===== PROCESS NEXT ORDER =====");
+
+        // poll instead of isEmpty + dequeue, fulfilment workers may take the last order in between
+        Order order = pollClaimed();
+        if (order == null) {
+            System.out.println("No orders to process.");
+            return;
+        }
+
+        System.out.println("Processing Order ID: " + order.getId());
+        System.out.println("Customer: " + order.getCustomerName());
+        System.out.println("Address: " + order.getAddress());
+        renderer.orderItems(order);
+        renderer.orderTotal(order);
+        renderer.end();
+        fulfilOrder(order);
+        System.out.println("Order processed successfully!");
+    }
+
+    // Take the next order off the queue, claiming it so a cancellation can't race with processing it
+    private Order pollClaimed() {
+        Order order;
+        while ((order = orderQueue.poll()) != null) {
+            if (order.compareAndSetStatus("Pending", "Processing")) {
+                return order;
+            }
+        }
+        return null;
+    }
+
+    // Fulfilment engine entry point: process the order unless it was cancelled after being dequeued
+    private void fulfilQueuedOrder(Order order) {
+        if (order.compareAndSetStatus("Pending", "Processing")) {
+            try {
+                fulfilOrder(order);
+            } catch (RuntimeException e) {
+                failOrder(order);
+                throw e;
+            }
+        }
+    }
+
+    // Give up on a claimed order that failed before it was marked processed, so it doesn't stay
+    // Processing forever: its copies go back and the log drops it from the queue like a cancellation
+    private void failOrder(Order order) {
+        if (order.compareAndSetStatus("Processing", "Failed")) {
+            inventory.release(order);
+            awaitLogged(logCancelled(order));
+        }
+    }
+
+    // Mark a claimed order processed and move it to the processed stack (called from fulfilment workers too)
+    private void fulfilOrder(Order order) {
+        long start = Metrics.startTimer();
+        inventory.commit(order);
+        order.setStatus("Processed");
+
+        // Add to processed orders stack, logging under the same lock so the log keeps the stack order.
+        // The order is logged before it is pushed, so a spill's watermark never covers an unlogged order.
+        long lsn;
+        synchronized (processedOrders) {
+            lsn = logProcessed(order);
+            processedOrders.push(order);
+            logArchived();
+        }
+        checkArchive();
+        sales.record(order);
+        awaitLogged(lsn);
+        ordersProcessed.increment();
+        processLatency.recordSince(start);
+    }
+
+    // Process the next N orders (or all of them) with one summary and one push
+    private void processOrderBatch() {
+        System.out.println("\n===== PROCESS ORDERS IN BATCH =====");
+        System.out.print("Enter number of orders to process (Enter for all): ");
+
+        String line = input.nextLine().trim();
+        int limit = Integer.MAX_VALUE;
+        try {
+            if (!line.isEmpty()) {
+                limit = Integer.parseInt(line);
+            }
+            if (limit <= 0) {
+                System.out.println("Number of orders must be positive.");
+                return;
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number format.");
+            return;
+        }
+
+        MyArrayList<Order> batch = processOrders(limit);
+        if (batch.isEmpty()) {
+            System.out.println("No orders to process.");
+            return;
+        }
+
+        // Build the whole summary before printing it once
+        StringBuilder summary = new StringBuilder();
+        long batchTotalCents = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Order order = batch.get(i);
+            batchTotalCents += order.getTotalCents();
+
+            summary.append("Order ").append(order.getId())
+                    .append(" | ").append(order.getCustomerName())
+                    .append(" | ").append(order.getItems().size()).append(" item(s)")
+                    .append(" | $");
+            Money.append(summary, order.getTotalCents()).append('\n');
+        }
+        summary.append("Processed ").append(batch.size()).append(" order(s), total $");
+        Money.append(summary, batchTotalCents);
+        System.out.println(summary);
+    }
+
+    // Take up to limit orders off the queue, process them and push them in one step
+    MyArrayList<Order> processOrders(int limit) {
+        long start = Metrics.startTimer();
+        MyArrayList<Order> batch = new MyArrayList<>();
+        while (batch.size() < limit) {
+            Order order = pollClaimed();
+            if (order == null) {
+                break;
+            }
+            inventory.commit(order);
+            order.setStatus("Processed");
+            batch.add(order);
+        }
+
+        // One log wait for the whole batch - its events share a sync
+        long lsn = 0;
+        synchronized (processedOrders) {
+            for (int i = 0; i < batch.size(); i++) {
+                lsn = logProcessed(batch.get(i));
+            }
+            processedOrders.pushAll(batch);
+            logArchived();
+        }
+        checkArchive();
+        for (int i = 0; i < batch.size(); i++) {
+            sales.record(batch.get(i));
+        }
+        awaitLogged(lsn);
+        if (!batch.isEmpty()) {
+            ordersProcessed.add(batch.size());
+            batchLatency.recordSince(start);
+        }
+        return batch;
+    }
+
+    // Create an empty order with a fresh ID, throws if the ID counter could not be saved
+    Order createOrder(String customerName, String address) throws IOException {
+        return new Order(orderIds.next(), customerName, address, inventory);
+    }
+
+    // Cancel a pending order and give back its reserved copies, returns false if it was already processed
+    boolean cancelOrder(Order order) {
+        if (!order.compareAndSetStatus("Pending", "Cancelled")) {
+            return false;
+        }
+        orderQueue.remove(order);
+        inventory.release(order);
+        awaitLogged(logCancelled(order));
+        ordersCancelled.increment();
+        return true;
+    }
+
+    // Give back the copies reserved by an order that is abandoned before it is submitted
+    void releaseStock(Order order) {
+        inventory.release(order);
+    }
+
+    // Receive copies of a book (negative to write copies off), tracking its stock from now on;
+    // throws IllegalArgumentException for a write-off larger than the available copies, and
+    // IOException if the change could not be logged (it is not applied if the append failed)
+    void addStock(int bookId, long copies) throws IOException {
+        awaitDurable(inventory.addStock(bookId, copies, orderLog != null ? orderLog::logStock : null));
+    }
+
+    // Copies of a book that can still be ordered, or -1 if its stock isn't tracked
+    long availableCopies(int bookId) {
+        long onHand = inventory.getOnHand(bookId);
+        return onHand < 0 ? -1 : Math.max(0, onHand - inventory.getReserved(bookId));
+    }
+
+    // Sum of the order totals in cents, split across cores for large lists
+    long totalCents(MyArrayList<Order> orders) {
+        return parallel.sum(orders, Order::getTotalCents);
+    }
+
+    // Set how many threads the catalog-wide operations use
+    void setParallelism(int parallelism) {
+        parallel.setParallelism(parallelism);
+    }
+
+    // Log a finished order and wait for it to reach the disk, then index and queue it; if the log
+    // fails the order is withdrawn before the engine could see it
+    void submitOrder(Order order) throws IOException {
+        try {
+            awaitDurable(logOrder(order));
+        } catch (IOException e) {
+            withdrawOrder(order);
+            throw e;
+        }
+        queueOrder(order);
+    }
+
+    // Append a finished order to the log without exposing it, returns the log sequence number to
+    // wait on (0 if there is no log); the caller queues it with queueOrder once that is durable
+    long logOrder(Order order) throws IOException {
+        long start = Metrics.startTimer();
+        long lsn = logEnqueue(order);
+        submitLatency.recordSince(start);
+        return lsn;
+    }
+
+    // Index and queue an order whose log event is on disk, from here on workers may take it
+    void queueOrder(Order order) {
+        indexOrder(order);
+        orderQueue.enqueue(order);
+        ordersPlaced.increment();
+    }
+
+    // Find a pending or processed order by ID, or null
+    Order findOrderById(int orderId) {
+        Order order;
+        synchronized (orderIndex) {
+            order = orderIndex.get(orderId);
+        }
+        if (order != null) {
+            return order;
+        }
+
+        // Archiving writes the order out before unindexing it, so a miss here can't fall in between
+        try {
+            return processedOrders.findArchived(orderId);
+        } catch (IOException e) {
+            System.out.println("Warning: could not read the order archive: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Report a failed archive spill; those orders stay in memory until a later spill succeeds
+    private void checkArchive() {
+        IOException failure = processedOrders.takeFailure();
+        if (failure != null) {
+            System.out.println("Warning: could not archive processed orders: " + failure.getMessage());
+        }
+    }
+
+    // Drop an order that was archived out of memory from the ID index
+    private void unindexOrder(Order order) {
+        synchronized (orderIndex) {
+            if (orderIndex.get(order.getId()) == order) {
+                orderIndex.remove(order.getId());
+            }
+        }
+    }
+
+    // Add an order to the ID index, returns its ID
+    private int indexOrder(Order order) {
+        synchronized (orderIndex) {
+            orderIndex.put(order.getId(), order);
+        }
+        return order.getId();
+    }
+
+    // Save books to the catalog file with a single sync, then add them to the in-memory catalog
+    void storeBooks(MyArrayList<Book> books) throws IOException {
+        if (catalogFile != null) {
+            catalogFile.appendAll(books);
+        }
+        for (int i = 0; i < books.size(); i++) {
+            addBook(books.get(i));
+        }
+    }
+
+    // Check if a book can be stored (the catalog file limits title and author length)
+    boolean canStore(String title, String author) {
+        return catalogFile == null || BookCatalogFile.fits(title, author);
+    }
+
+    // Append an order to the log, returns 0 if there is no log
+    private long logEnqueue(Order order) throws IOException {
+        return orderLog != null ? orderLog.logEnqueue(order) : 0;
+    }
+
+    // Give up on an order whose log event failed; it was never queued, so only its stock is held
+    void withdrawOrder(Order order) {
+        if (order.compareAndSetStatus("Pending", "Failed")) {
+            inventory.release(order);
+        }
+    }
+
+    // Append a processed event to the log, returns 0 if there is no log or the append failed
+    private long logProcessed(Order order) {
+        if (orderLog == null) {
+            return 0;
+        }
+        try {
+            return orderLog.logProcessed(order);
+        } catch (IOException e) {
+            System.out.println("Warning: could not log order " + order.getId() + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // After a push that spilled, record in the log how far the archive now reaches, so recovery can
+    // drop the archived orders; called under the processedOrders lock. Nothing waits for it: if it
+    // is lost, recovery cuts the archive back to the previous mark and the log still has the orders.
+    private void logArchived() {
+        int archived = processedOrders.getArchivedCount();
+        if (orderLog == null || archived == loggedArchivedCount) {
+            return;
+        }
+        try {
+            orderLog.logArchived(archived, processedOrders.getArchivedThrough());
+            loggedArchivedCount = archived;
+        } catch (IOException e) {
+            System.out.println("Warning: could not log the order archive mark: " + e.getMessage());
+        }
+    }
+
+    // Append a cancellation to the log, returns 0 if there is no log or the append failed
+    private long logCancelled(Order order) {
+        if (orderLog == null) {
+            return 0;
+        }
+        try {
+            return orderLog.logCancelled(order);
+        } catch (IOException e) {
+            System.out.println("Warning: could not log order " + order.getId() + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Wait until a logged event is on disk, only warning if the log failed
+    void awaitLogged(long lsn) {
+        try {
+            awaitDurable(lsn);
+        } catch (IOException e) {
+            System.out.println("Warning: order log write failed: " + e.getMessage());
+        }
+    }
+
+    // Wait for logged events to reach the disk, throwing if the log failed
+    void awaitDurable(long lsn) throws IOException {
+        if (orderLog == null || lsn == 0) {
+            return;
+        }
+        long start = Metrics.startTimer();
+        try {
+            orderLog.awaitDurable(lsn);
+        } finally {
+            logWaitLatency.recordSince(start);
+        }
+    }
+
+    // Start, stop or resize the background fulfilment engine
+    private void manageEngine() {
+        System.out.println("\n===== FULFILMENT ENGINE =====");
+        System.out.println("Status: " + (engine.isRunning() ? "running" : "stopped"));
+        System.out.println("1. Start engine");
+        System.out.println("2. Stop engine");
+        System.out.println("3. Resize worker pool");
+        System.out.println("4. Show throughput");
+        System.out.print("Enter your choice: ");
+
+        int choice = 0;
+        try {
+            choice = Integer.parseInt(input.nextLine());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid choice.");
+            return;
+        }
+
+        if (choice == 1 || choice == 3) {
+            if (choice == 1 && engine.isRunning()) {
+                System.out.println("Engine is already running.");
+                return;
+            }
+            if (choice == 3 && !engine.isRunning()) {
+                System.out.println("Engine is not running.");
+                return;
+            }
+
+            int cores = Runtime.getRuntime().availableProcessors();
+            System.out.print("Enter number of workers (Enter for " + cores + "): ");
+            String line = input.nextLine().trim();
+            int workers = cores;
+            try {
+                if (!line.isEmpty()) {
+                    workers = Integer.parseInt(line);
+                }
+                if (workers <= 0) {
+                    System.out.println("Number of workers must be positive.");
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid number format.");
+                return;
+            }
+
+            if (choice == 1) {
+                engine.start(workers);
+                System.out.println("Engine started with " + workers + " workers.");
+            } else {
+                engine.resize(workers);
+                System.out.println("Engine resized to " + workers + " workers.");
+            }
+        } else if (choice == 2) {
+            if (!engine.isRunning()) {
+                System.out.println("Engine is not running.");
+                return;
+            }
+            String report = engine.report();
+            engine.stop();
+            System.out.println("Engine stopped. " + report);
+        } else if (choice == 4) {
+            System.out.println(engine.report());
+        } else {
+            System.out.println("Invalid choice.");
+        }
+    }
+
+    // Change the thread count and sequential cutoff of sorting, scanning and summing
+    private void configureParallelism() {
+        System.out.println("\n===== PARALLEL PROCESSING =====");
+        System.out.println("Threads: " + parallel.getParallelism() +
+                " | Sequential cutoff: " + parallel.getCutoff() + " elements");
+
+        try {
+            System.out.print("Enter number of threads (Enter to keep): ");
+            String line = input.nextLine().trim();
+            if (!line.isEmpty()) {
+                parallel.setParallelism(Integer.parseInt(line));
+            }
+            System.out.print("Enter sequential cutoff (Enter to keep): ");
+            line = input.nextLine().trim();
+            if (!line.isEmpty()) {
+                parallel.setCutoff(Integer.parseInt(line));
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid number, must be at least 1.");
+            return;
+        }
+        System.out.println("Threads: " + parallel.getParallelism() +
+                " | Sequential cutoff: " + parallel.getCutoff() + " elements");
+    }
+
+    // Sales figures from the running analytics, nothing here walks the order history
+    private void salesReport() {
+        System.out.println("\n===== SALES REPORT =====");
+        System.out.println("Orders processed: " + sales.getOrderCount());
+        System.out.println("Units sold: " + sales.getUnitsSold());
+        System.out.println("Revenue: $" + Money.format(sales.getRevenueCents()));
+        System.out.println("1. Best sellers");
+        System.out.println("2. Sales of a book");
+        System.out.println("3. Top authors by revenue");
+        System.out.print("Enter your choice (Enter to go back): ");
+
+        String line = input.nextLine().trim();
+        if (line.isEmpty()) {
+            return;
+        }
+        int choice;
+        try {
+            choice = Integer.parseInt(line);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid choice.");
+            return;
+        }
+
+        if (choice == 1) {
+            System.out.print("How many books (up to " + SalesAnalytics.TOP_CAPACITY + "): ");
+            try {
+                int k = Integer.parseInt(input.nextLine());
+                if (k <= 0) {
+                    System.out.println("Number of books must be positive.");
+                    return;
+                }
+                MyArrayList<SalesAnalytics.Sales> top = sales.topSellers(k);
+                if (top.isEmpty()) {
+                    System.out.println("No sales yet.");
+                    return;
+                }
+                for (int i = 0; i < top.size(); i++) {
+                    SalesAnalytics.Sales book = top.get(i);
+                    System.out.println((i + 1) + ". " + book.getName() + " (ID " + book.getBook().getId() + ") - " +
+                            book.getUnits() + " unit(s), $" + Money.format(book.getRevenueCents()));
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid number format.");
+            }
+        } else if (choice == 2) {
+            System.out.print("Enter book ID: ");
+            try {
+                int bookId = Integer.parseInt(input.nextLine());
+                SalesAnalytics.Sales book = sales.forBook(bookId);
+                if (book == null) {
+                    System.out.println("No sales for this book.");
+                    return;
+                }
+                System.out.println(book.getName() + " - " + book.getUnits() + " unit(s), $" +
+                        Money.format(book.getRevenueCents()));
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid ID format.");
+            }
+        } else if (choice == 3) {
+            System.out.print("How many authors (up to " + SalesAnalytics.TOP_CAPACITY + "): ");
+            try {
+                int k = Integer.parseInt(input.nextLine());
+                if (k <= 0) {
+                    System.out.println("Number of authors must be positive.");
+                    return;
+                }
+                MyArrayList<SalesAnalytics.Sales> authors = sales.topAuthors(k);
+                if (authors.isEmpty()) {
+                    System.out.println("No sales yet.");
+                    return;
+                }
+                for (int i = 0; i < authors.size(); i++) {
+                    SalesAnalytics.Sales author = authors.get(i);
+                    System.out.println((i + 1) + ". " + author.getName() + " - " + author.getUnits() + " unit(s), $" +
+                            Money.format(author.getRevenueCents()));
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid number format.");
+            }
+        } else {
+            System.out.println("Invalid choice.");
+        }
+    }
+
+    // Look up a pending or processed order through the order index
+    private void findOrder() {
+        System.out.println("\n===== FIND ORDER =====");
+        System.out.print("Enter order ID: ");
+
+        int orderId;
+        try {
+            orderId = Integer.parseInt(input.nextLine());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid ID format.");
+            return;
+        }
+
+        Order order = findOrderById(orderId);
+        if (order == null) {
+            System.out.println("Order not found!");
+            return;
+        }
+        renderer.orderDetails(order, true);
+        renderer.end();
+    }
+
+    // Print the metrics and optionally save them to a file for a collector to pick up
+    private void showMetrics() {
+        System.out.println("\n===== METRICS =====");
+        if (!Metrics.ENABLED) {
+            System.out.println("Metrics are disabled (started with -Dbookstore.metrics=false).");
+            return;
+        }
+        System.out.print(metrics.scrape());
+
+        System.out.print("Save to file (Enter to skip): ");
+        String line = input.nextLine().trim();
+        if (line.isEmpty()) {
+            return;
+        }
+        try {
+            writeMetrics(Paths.get(line));
+            System.out.println("Metrics saved to " + line + ".");
+        } catch (IOException | InvalidPathException e) {
+            System.out.println("Could not save the metrics: " + e.getMessage());
+        }
+    }
+
+    // Write the current metrics to a file in the Prometheus text format
+    void writeMetrics(Path path) throws IOException {
+        metrics.writeTo(path);
+    }
+
+    // Show the search cache counters and let the user change its policy or size
+    private void configureSearchCache() {
+        System.out.println("\n===== SEARCH CACHE =====");
+        printSearchCacheStats();
+
+        int policy = searchCache.getPolicy();
+        int capacity = searchCache.getCapacity();
+        try {
+            System.out.print("Eviction policy, 1. LRU or 2. W-TinyLFU (Enter to keep): ");
+            String line = input.nextLine().trim();
+            if (!line.isEmpty()) {
+                policy = Integer.parseInt(line);
+            }
+            System.out.print("Number of cached searches (Enter to keep): ");
+            line = input.nextLine().trim();
+            if (!line.isEmpty()) {
+                capacity = Integer.parseInt(line);
+            }
+            if (policy == searchCache.getPolicy() && capacity == searchCache.getCapacity()) {
+                return;
+            }
+            searchCache = new SearchCache<>(policy, capacity);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid choice, the cache is unchanged.");
+            return;
+        }
+        System.out.println("Search cache reset.");
+        printSearchCacheStats();
+    }
+
+    private void printSearchCacheStats() {
+        long hits = searchCache.getHits();
+        long lookups = hits + searchCache.getMisses();
+        System.out.println("Policy: " + SearchCache.POLICY_NAMES[searchCache.getPolicy()] +
+                " | Entries: " + searchCache.size() + " of " + searchCache.getCapacity());
+        System.out.println("Hits: " + hits + " | Misses: " + searchCache.getMisses() +
+                " | Evictions: " + searchCache.getEvictions() +
+                " | Hit rate: " + (lookups == 0 ? 0 : hits * 100 / lookups) + "%");
+    }
+
+    // Cancel a pending order by ID, releasing the copies it reserved
+    private void cancelOrderById() {
+        System.out.println("\n===== CANCEL ORDER =====");
+        System.out.print("Enter order ID: ");
+
+        int orderId;
+        try {
+            orderId = Integer.parseInt(input.nextLine());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid ID format.");
+            return;
+        }
+
+        Order order = findOrderById(orderId);
+        if (order == null) {
+            System.out.println("Order not found!");
+            return;
+        }
+        if (!cancelOrder(order)) {
+            System.out.println("Order " + orderId + " can't be cancelled, it is " + order.getStatus() + ".");
+            return;
+        }
+        System.out.println("Order " + orderId + " cancelled.");
+    }
+
+    // Show a book's stock level and record copies received or written off
+    private void manageStock() {
+        System.out.println("\n===== STOCK LEVELS =====");
+        System.out.print("Enter book ID: ");
+
+        int bookId;
+        try {
+            bookId = Integer.parseInt(input.nextLine());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid ID format.");
+            return;
+        }
+
+        Book book = findBookById(bookId);
+        if (book == null) {
+            System.out.println("Book not found!");
+            return;
+        }
+        System.out.println(book);
+        long onHand = inventory.getOnHand(bookId);
+        if (onHand < 0) {
+            System.out.println("Stock is not tracked for this book (it never runs out).");
+        } else {
+            System.out.println("In stock: " + onHand + ", reserved: " + inventory.getReserved(bookId) +
+                    ", available: " + availableCopies(bookId));
+        }
+
+        System.out.print("Enter copies received, negative to write off (Enter to leave unchanged): ");
+        String line = input.nextLine().trim();
+        if (line.isEmpty()) {
+            return;
+        }
+        try {
+            addStock(bookId, Long.parseLong(line));
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number format.");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("Stock not changed: " + e.getMessage() + ".");
+            return;
+        } catch (IOException e) {
+            System.out.println("Stock change could not be saved: " + e.getMessage());
+            return;
+        }
+        System.out.println("Stock updated, " + availableCopies(bookId) + " available.");
+    }
+
+    // Show the scheduling policy and let the user pick another one
+    private void chooseSchedulePolicy() {
+        System.out.println("\n===== ORDER SCHEDULING POLICY =====");
+        System.out.println("Current policy: " + SCHEDULE_NAMES[schedulePolicy]);
+        for (int i = SCHEDULE_FIFO; i < SCHEDULE_NAMES.length; i++) {
+            System.out.println(i + ". " + SCHEDULE_NAMES[i]);
+        }
+        System.out.print("Enter your choice (Enter to keep the current policy): ");
+
+        String line = input.nextLine().trim();
+        if (line.isEmpty()) {
+            return;
+        }
+        try {
+            setSchedulePolicy(Integer.parseInt(line));
+            System.out.println("Orders are now processed: " + SCHEDULE_NAMES[schedulePolicy] + ".");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid choice.");
+        }
+    }
+
+    // Display order queue
+    private void displayOrderQueue() {
+        System.out.println("\n===== ORDER QUEUE =====");
+
+        if (orderQueue.isEmpty()) {
+            System.out.println("No orders in queue.");
+            return;
+        }
+
+        // Walk a snapshot in processing order, fulfilment workers may be taking orders while we list them
+        int count = 1;
+        renderer.begin();
+        for (Order order : orderQueue) {
+            if (!renderer.nextEntry()) {
+                break;
+            }
+            renderer.order(count++, order);
+        }
+        renderer.end();
+    }
+
+    // Display processed orders
+    private void displayProcessedOrders() {
+        System.out.println("\n===== PROCESSED ORDERS =====");
+
+        if (processedOrders.getTotalCount() == 0) {
+            System.out.println("No processed orders.");
+            return;
+        }
+
+        // Most recent first: the iterator copies the in-memory window up front and reads archived
+        // orders back a chunk at a time, so a listing paused at a page break holds no lock
+        int count = 1;
+        IOException failure = null;
+        renderer.begin();
+        try {
+            for (Order order : processedOrders) {
+                if (!renderer.nextEntry()) {
+                    break;
+                }
+                renderer.order(count++, order);
+            }
+        } catch (UncheckedIOException e) {
+            failure = e.getCause();
+        }
+        renderer.end();
+        if (failure != null) {
+            System.out.println("Warning: could not read the order archive: " + failure.getMessage());
+        }
+    }
+}
+
+// Headless command runner for bulk loads and order replays (no menu, buffered I/O)
+// One command per line, fields separated by '|'; blank lines and lines starting with '#' are skipped:
+//   BOOK|<id>|<title>|<author>|<price>
+//   ORDER|<customer>|<address>|<bookId>:<quantity>,<bookId>:<quantity>,...[|EXPRESS]
+//   PROCESS|<count>    (PROCESS or PROCESS|ALL processes every queued order)
+//   STOCK|<bookId>|<copies>    (copies received, negative to write off)
+//   CANCEL|<orderId>
+class BatchCommandRunner {
+    private static final int BOOK_CHUNK = 4096; // books saved per catalog file sync
+    private static final int MAX_FIELDS = 5;
+
+    private final BookstoreSystem system;
+    private final PrintWriter out;
+    private final String[] fields = new String[MAX_FIELDS];
+    private final MyArrayList<Book> pendingBooks = new MyArrayList<>();
+    private final MyIntHashMap<Book> pendingIds = new MyIntHashMap<>();
+    private final MyArrayList<Order> pendingOrders = new MyArrayList<>(); // logged, not yet queued
+    private long lastOrderLsn;
+    private int lineNumber;
+    private int booksAdded;
+    private int ordersPlaced;
+    private int ordersProcessed;
+    private int ordersCancelled;
+    private int errors;
+
+    public BatchCommandRunner(BookstoreSystem system, PrintWriter out) {
+        this.system = system;
+        this.out = out;
+    }
+
+    // Run every command from the reader, returns the number of commands that failed
+    public int run(BufferedReader reader) throws IOException {
+        long start = System.nanoTime();
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            try {
+                execute(line);
+            } catch (IllegalArgumentException e) {
+                errors++;
+                out.println("Line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+
+        // Save the last chunk of books and queue the last orders once logged, a failed log fails the run
+        flushBooks();
+        flushOrders();
+
+        out.println("Added " + booksAdded + " book(s), placed " + ordersPlaced + " order(s), processed " +
+                ordersProcessed + " order(s), cancelled " + ordersCancelled + " order(s), " + errors + " error(s) in " +
+                (System.nanoTime() - start) / 1_000_000 + " ms.");
+        out.flush();
+        return errors;
+    }
+
+    private void execute(String line) throws IOException {
+        int count = split(line);
+        String command = fields[0].trim();
+
+        if (command.equalsIgnoreCase("BOOK")) {
+            requireFields(count, 5, "BOOK|<id>|<title>|<author>|<price>");
+            addBook(fields[1], fields[2], fields[3], fields[4]);
+        } else if (command.equalsIgnoreCase("ORDER")) {
+            requireFields(count, 4, 5, "ORDER|<customer>|<address>|<bookId>:<quantity>,...[|EXPRESS]");
+            boolean express = count > 4 && fields[4].trim().equalsIgnoreCase("EXPRESS");
+            if (count > 4 && !express) {
+                throw new IllegalArgumentException("unknown order flag: " + fields[4]);
+            }
+            placeOrder(fields[1], fields[2], fields[3], express);
+        } else if (command.equalsIgnoreCase("PROCESS")) {
+            String limit = count > 1 ? fields[1].trim() : "ALL";
+            process(limit.equalsIgnoreCase("ALL") ? Integer.MAX_VALUE : parsePositive(limit, "count"));
+        } else if (command.equalsIgnoreCase("STOCK")) {
+            requireFields(count, 3, "STOCK|<bookId>|<copies>");
+            addStock(fields[1], fields[2]);
+        } else if (command.equalsIgnoreCase("CANCEL")) {
+            requireFields(count, 2, "CANCEL|<orderId>");
+            cancel(fields[1]);
+        } else {
+            throw new IllegalArgumentException("unknown command: " + command);
+        }
+    }
+
+    // Books are saved in chunks, so one sync covers thousands of them
+    private void addBook(String idField, String title, String author, String priceField) throws IOException {
+        int id = parseInt(idField, "book ID");
+        if (system.findBookById(id) != null || pendingIds.containsKey(id)) {
+            throw new IllegalArgumentException("a book with ID " + id + " already exists");
+        }
+
+        long priceCents;
+        try {
+            priceCents = Money.parseCents(priceField);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid price: " + priceField);
+        }
+        if (priceCents <= 0) {
+            throw new IllegalArgumentException("price must be positive");
+        }
+        if (!system.canStore(title, author)) {
+            throw new IllegalArgumentException("title or author is too long for the catalog file");
+        }
+
+        Book book = Book.ofCents(id, title, author, priceCents);
+        pendingBooks.add(book);
+        pendingIds.put(id, book);
+        if (pendingBooks.size() >= BOOK_CHUNK) {
+            flushBooks();
+        }
+    }
+
+    // Orders are logged without waiting and held back; one wait queues them all before the next
+    // command that needs them (PROCESS, CANCEL) or at the end of the run
+    private void placeOrder(String customer, String address, String itemsField, boolean express) throws IOException {
+        // The order may refer to books still waiting to be saved
+        flushBooks();
+
+        Order order = system.createOrder(customer, address);
+        try {
+            addItems(order, itemsField);
+        } catch (IllegalArgumentException e) {
+            system.releaseStock(order); // the order is dropped, so are its reservations
+            throw e;
+        }
+        order.setExpress(express);
+
+        long lsn;
+        try {
+            lsn = system.logOrder(order);
+        } catch (IOException e) {
+            system.withdrawOrder(order); // it was never queued
+            throw e;
+        }
+        if (lsn != 0) {
+            lastOrderLsn = lsn;
+        }
+        pendingOrders.add(order);
+    }
+
+    // Parse "<bookId>:<quantity>,..." and add the items, reserving stock for each
+    private void addItems(Order order, String itemsField) {
+        int start = 0;
+        while (start < itemsField.length()) {
+            int end = itemsField.indexOf(',', start);
+            if (end < 0) {
+                end = itemsField.length();
+            }
+
+            int colon = itemsField.indexOf(':', start);
+            if (colon < 0 || colon > end) {
+                throw new IllegalArgumentException("item must be <bookId>:<quantity>: " +
+                        itemsField.substring(start, end));
+            }
+            int bookId = parseInt(itemsField.substring(start, colon), "book ID");
+            int quantity = parsePositive(itemsField.substring(colon + 1, end), "quantity");
+
+            Book book = system.findBookById(bookId);
+            if (book == null) {
+                throw new IllegalArgumentException("book not found: " + bookId);
+            }
+            if (!order.addBook(book, quantity)) {
+                throw new IllegalArgumentException("not enough stock for book " + bookId + ": " +
+                        system.availableCopies(bookId) + " available");
+            }
+            start = end + 1;
+        }
+
+        if (order.getItems().isEmpty()) {
+            throw new IllegalArgumentException("order has no items");
+        }
+    }
+
+    // Stock changes are waited on one by one, they are rare next to orders
+    private void addStock(String idField, String copiesField) throws IOException {
+        flushBooks(); // the book may still be waiting to be saved
+        int bookId = parseInt(idField, "book ID");
+        if (system.findBookById(bookId) == null) {
+            throw new IllegalArgumentException("book not found: " + bookId);
+        }
+        long copies;
+        try {
+            copies = Long.parseLong(copiesField.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid copies: " + copiesField);
+        }
+        system.addStock(bookId, copies);
+    }
+
+    private void cancel(String idField) throws IOException {
+        flushOrders(); // the order may still be held back
+        int orderId = parseInt(idField, "order ID");
+        Order order = system.findOrderById(orderId);
+        if (order == null) {
+            throw new IllegalArgumentException("order not found: " + orderId);
+        }
+        if (!system.cancelOrder(order)) {
+            throw new IllegalArgumentException("order " + orderId + " is already " + order.getStatus());
+        }
+        ordersCancelled++;
+    }
+
+    private void process(int limit) throws IOException {
+        flushOrders();
+        MyArrayList<Order> batch = system.processOrders(limit);
+        long totalCents = system.totalCents(batch);
+        ordersProcessed += batch.size();
+        out.println("Processed " + batch.size() + " order(s), total $" + Money.format(totalCents));
+    }
+
+    private void flushBooks() throws IOException {
+        if (pendingBooks.isEmpty()) {
+            return;
+        }
+        system.storeBooks(pendingBooks);
+        booksAdded += pendingBooks.size();
+        pendingBooks.clear();
+        pendingIds.clear();
+    }
+
+    // Wait once for the held-back orders to be logged, then queue them; if the log failed none of
+    // them is queued and their stock is given back
+    private void flushOrders() throws IOException {
+        if (pendingOrders.isEmpty()) {
+            return;
+        }
+        try {
+            system.awaitDurable(lastOrderLsn);
+        } catch (IOException e) {
+            for (int i = 0; i < pendingOrders.size(); i++) {
+                system.withdrawOrder(pendingOrders.get(i));
+            }
+            pendingOrders.clear();
+            throw e;
+        }
+        for (int i = 0; i < pendingOrders.size(); i++) {
+            system.queueOrder(pendingOrders.get(i));
+        }
+        ordersPlaced += pendingOrders.size();
+        pendingOrders.clear();
+    }
+
+    // Split the line on '|' into the reusable fields array, returns the field count
+    private int split(String line) {
+        int count = 0;
+        int start = 0;
+        while (count < MAX_FIELDS - 1) {
+            int end = line.indexOf('|', start);
+            if (end < 0) {
+                break;
+            }
+            fields[count++] = line.substring(start, end);
+            start = end + 1;
+        }
+        fields[count++] = line.substring(start);
+        return count;
+    }
+
+    private static void requireFields(int count, int expected, String usage) {
+        requireFields(count, expected, expected, usage);
+    }
+
+    private static void requireFields(int count, int min, int max, String usage) {
+        if (count < min || count > max) {
+            throw new IllegalArgumentException("expected " + usage);
+        }
+    }
+
+    private static int parseInt(String text, String name) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid " + name + ": " + text);
+        }
+    }
+
+    private static int parsePositive(String text, String name) {
+        int value = parseInt(text, name);
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+        return value;
+    }
+}
+
+// Main Application Class
+public class BookstoreApp {
+    public static void main(String[] args) {
+        boolean arrayBacked = true;
+        Path catalogPath = null;
+        Path orderLogPath = null;
+        String batchSource = null;
+        Path metricsPath = null;
+        int parallelism = 0; // 0 keeps the default, one thread per core
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--linked")) {
+                // Switch the order history back to the node-based collections
+                arrayBacked = false;
+            } else if (args[i].equals("--catalog") && i + 1 < args.length) {
+                catalogPath = Paths.get(args[++i]);
+            } else if (args[i].equals("--orders") && i + 1 < args.length) {
+                orderLogPath = Paths.get(args[++i]);
+            } else if (args[i].equals("--parallelism") && i + 1 < args.length) {
+                try {
+                    parallelism = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    parallelism = -1;
+                }
+                if (parallelism < 1) {
+                    System.out.println("Parallelism must be a positive number.");
+                    return;
+                }
+            } else if (args[i].equals("--metrics") && i + 1 < args.length) {
+                // Write the metrics to this file on exit
+                metricsPath = Paths.get(args[++i]);
+            } else if (args[i].equals("--batch") && i + 1 < args.length) {
+                // Run commands from a file (or "-" for standard input) instead of the menu
+                batchSource = args[++i];
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                System.out.println("Usage: java BookstoreApp [--linked] [--catalog <file>] [--orders <directory>] " +
+                        "[--parallelism <threads>] [--metrics <file>] [--batch <file>|-]");
+                return;
+            }
+        }
+
+        BookstoreSystem system;
+        try {
+            system = new BookstoreSystem(arrayBacked, catalogPath, orderLogPath);
+        } catch (IOException e) {
+            System.out.println("Could not open the data files: " + e.getMessage());
+            return;
+        }
+        if (parallelism > 0) {
+            system.setParallelism(parallelism);
+        }
+
+        if (batchSource != null) {
+            runBatch(system, batchSource);
+            system.shutdown();
+        } else {
+            system.runMenu();
+        }
+
+        if (metricsPath != null && Metrics.ENABLED) {
+            try {
+                system.writeMetrics(metricsPath);
+            } catch (IOException e) {
+                System.out.println("Could not write the metrics: " + e.getMessage());
+            }
+        }
+    }
+
+    // Run a command file with buffered input and output
+    private static void runBatch(BookstoreSystem system, String source) {
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16));
+        try (BufferedReader reader = source.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)
+                : Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8)) {
+            new BatchCommandRunner(system, out).run(reader);
+        } catch (IOException e) {
+            out.println("Batch run failed: " + e.getMessage());
+        }
+        out.flush();
+    }
+}
+
+// Micro-benchmarks for the custom collections and the bookstore operations,
+// each measured side by side with the closest JDK equivalent.
+//
+// Kept in this file so it can use the package-private classes above; build and run:
+//   javac -Xlint:all -d out BookstoreApp.java
+//   java -Xmx8g -cp out BookstoreBenchmark [--sizes 1000,100000,1000000,10000000] [--filter name]
+class BookstoreBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 7;
+    private static final long MIN_ROUND_NANOS = 100_000_000L; // repeat short bodies up to ~100ms per round
+    private static final int TITLE_QUERIES = 200;
+    private static final int CACHED_QUERIES = 2000;
+    private static final int ITEMS_PER_ORDER = 10;
+    private static final String[] WORDS = {
+        "java", "data", "structures", "algorithms", "database", "design", "web", "development",
+        "systems", "networks", "compilers", "graphics", "security", "patterns", "testing", "cloud"
+    };
+
+    // Results are folded in here so the JIT can't drop the measured work
+    private static long sink;
+    private static String filter = "";
+
+    // One benchmark body, returns a value that depends on the work it did
+    private interface Body {
+        long run();
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = {1_000, 100_000, 1_000_000};
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--sizes") && i + 1 < args.length) {
+                String[] parts = args[++i].split(",");
+                sizes = new int[parts.length];
+                for (int j = 0; j < parts.length; j++) {
+                    sizes[j] = Integer.parseInt(parts[j].trim());
+                }
+            } else if (args[i].equals("--filter") && i + 1 < args.length) {
+                filter = args[++i];
+            } else {
+                System.out.println("Usage: java BookstoreBenchmark [--sizes 1000,100000] [--filter name]");
+                return;
+            }
+        }
+
+        System.out.printf("%-34s %10s %14s %14s %9s%n", "benchmark", "size", "custom ns/op", "jdk ns/op", "speedup");
+        for (int size : sizes) {
+            Book[] books = generateBooks(size, new Random(42));
+            benchmarkArrayList(books);
+            benchmarkQueues(books);
+            benchmarkStacks(books);
+            benchmarkBookstore(books);
+            benchmarkOrders(books);
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    // MyArrayList add (with resizes) and get against java.util.ArrayList
+    private static void benchmarkArrayList(Book[] books) {
+        int n = books.length;
+
+        compare("MyArrayList.add", n, n,
+                () -> {
+                    MyArrayList<Book> list = new MyArrayList<>();
+                    for (Book book : books) {
+                        list.add(book);
+                    }
+                    return list.size();
+                },
+                () -> {
+                    ArrayList<Book> list = new ArrayList<>();
+                    for (Book book : books) {
+                        list.add(book);
+                    }
+                    return list.size();
+                });
+
+        MyArrayList<Book> myList = new MyArrayList<>();
+        ArrayList<Book> jdkList = new ArrayList<>();
+        for (Book book : books) {
+            myList.add(book);
+            jdkList.add(book);
+        }
+        compare("MyArrayList.get", n, n,
+                () -> {
+                    long sum = 0;
+                    for (int i = 0; i < n; i++) {
+                        sum += myList.get(i).getId();
+                    }
+                    return sum;
+                },
+                () -> {
+                    long sum = 0;
+                    for (int i = 0; i < n; i++) {
+                        sum += jdkList.get(i).getId();
+                    }
+                    return sum;
+                });
+    }
+
+    // Fill then drain each queue against ArrayDeque / ConcurrentLinkedQueue / PriorityBlockingQueue
+    private static void benchmarkQueues(Book[] books) {
+        int n = books.length;
+        Body jdkDeque = () -> {
+            ArrayDeque<Book> queue = new ArrayDeque<>();
+            for (Book book : books) {
+                queue.addLast(book);
+            }
+            long sum = 0;
+            while (!queue.isEmpty()) {
+                sum += queue.pollFirst().getId();
+            }
+            return sum;
+        };
+
+        compare("MyQueue enqueue+dequeue", n, n, () -> drain(new MyQueue<>(), books), jdkDeque);
+        compare("MyArrayQueue enqueue+dequeue", n, n, () -> drain(new MyArrayQueue<>(), books), jdkDeque);
+        compare("MyConcurrentQueue enqueue+dequeue", n, n,
+                () -> drain(new MyConcurrentQueue<>(), books),
+                () -> {
+                    ConcurrentLinkedQueue<Book> queue = new ConcurrentLinkedQueue<>();
+                    for (Book book : books) {
+                        queue.offer(book);
+                    }
+                    long sum = 0;
+                    Book book;
+                    while ((book = queue.poll()) != null) {
+                        sum += book.getId();
+                    }
+                    return sum;
+                });
+        compare("MyPriorityQueue enqueue+dequeue", n, n,
+                () -> drain(new MyPriorityQueue<>((book, arrival) -> Math.round(book.getPrice() * 100)), books),
+                () -> {
+                    PriorityBlockingQueue<Book> queue =
+                            new PriorityBlockingQueue<>(11, Comparator.comparingDouble(Book::getPrice));
+                    for (Book book : books) {
+                        queue.offer(book);
+                    }
+                    long sum = 0;
+                    Book book;
+                    while ((book = queue.poll()) != null) {
+                        sum += book.getId();
+                    }
+                    return sum;
+                });
+    }
+
+    // Push then pop each stack against ArrayDeque
+    private static void benchmarkStacks(Book[] books) {
+        int n = books.length;
+        Body jdkDeque = () -> {
+            ArrayDeque<Book> stack = new ArrayDeque<>();
+            for (Book book : books) {
+                stack.push(book);
+            }
+            long sum = 0;
+            while (!stack.isEmpty()) {
+                sum += stack.pop().getId();
+            }
+            return sum;
+        };
+
+        compare("MyStack push+pop", n, n, () -> drain(new MyStack<>(), books), jdkDeque);
+        compare("MyArrayStack push+pop", n, n, () -> drain(new MyArrayStack<>(), books), jdkDeque);
+    }
+
+    // ID and title search through BookstoreSystem, and every sort mode
+    private static void benchmarkBookstore(Book[] books) {
+        int n = books.length;
+        BookstoreSystem system = new BookstoreSystem();
+        HashMap<Integer, Book> jdkIndex = new HashMap<>();
+        for (Book book : books) {
+            system.addBook(book);
+            jdkIndex.put(book.getId(), book);
+        }
+
+        Random random = new Random(7);
+        int[] ids = new int[Math.min(n, 1_000_000)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = books[random.nextInt(n)].getId();
+        }
+        compare("searchBook by ID", n, ids.length,
+                () -> {
+                    long sum = 0;
+                    for (int id : ids) {
+                        sum += system.findBookById(id).getId();
+                    }
+                    return sum;
+                },
+                () -> {
+                    long sum = 0;
+                    for (int id : ids) {
+                        sum += jdkIndex.get(id).getId();
+                    }
+                    return sum;
+                });
+
+        // The JDK side is the original full scan: lowercase every title and call contains
+        String[] queries = new String[TITLE_QUERIES];
+        for (int i = 0; i < queries.length; i++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            queries[i] = word.substring(1, Math.min(word.length(), 6)) + " " + random.nextInt(10);
+        }
+        compare("searchBook by title", n, queries.length,
+                () -> {
+                    long found = 0;
+                    for (String query : queries) {
+                        found += system.findBooksByTitle(query).size();
+                    }
+                    return found;
+                },
+                () -> {
+                    long found = 0;
+                    for (String query : queries) {
+                        for (Book book : books) {
+                            if (book.getTitle().toLowerCase().contains(query)) {
+                                found++;
+                            }
+                        }
+                    }
+                    return found;
+                });
+
+        // A skewed mix of repeat and one-off title queries through the search cache (W-TinyLFU),
+        // against an access-ordered LinkedHashMap LRU of the same size in front of the same search
+        String[] pool = new String[4 * CACHED_QUERIES];
+        for (int i = 0; i < pool.length; i++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            pool[i] = word.substring(1, Math.min(word.length(), 6)) + " " + i;
+        }
+        String[] stream = new String[CACHED_QUERIES];
+        for (int i = 0; i < stream.length; i++) {
+            stream[i] = pool[(int) (Math.pow(random.nextDouble(), 3) * pool.length)];
+        }
+        LinkedHashMap<String, MyArrayList<Book>> jdkCache = new LinkedHashMap<String, MyArrayList<Book>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MyArrayList<Book>> eldest) {
+                return size() > 1024;
+            }
+        };
+        compare("repeated title searches (cache)", n, stream.length,
+                () -> {
+                    long found = 0;
+                    for (String query : stream) {
+                        found += system.cachedSearch("title:" + query, () -> system.findBooksByTitle(query)).size();
+                    }
+                    return found;
+                },
+                () -> {
+                    long found = 0;
+                    for (String query : stream) {
+                        found += jdkCache.computeIfAbsent(query, system::findBooksByTitle).size();
+                    }
+                    return found;
+                });
+
+        // Cold sorts use the same algorithms as sortCatalog on a fresh copy every round
+        MyArrayList<Book> unsorted = new MyArrayList<>();
+        ArrayList<Book> jdkUnsorted = new ArrayList<>();
+        for (Book book : books) {
+            unsorted.add(book);
+            jdkUnsorted.add(book);
+        }
+        compare("sortBooks by ID (radix)", n, n,
+                () -> {
+                    MyArrayList<Book> list = new MyArrayList<>(unsorted);
+                    list.sortByIntKey(Book::getId);
+                    return list.get(0).getId();
+                },
+                () -> {
+                    ArrayList<Book> list = new ArrayList<>(jdkUnsorted);
+                    list.sort(Comparator.comparingInt(Book::getId));
+                    return list.get(0).getId();
+                });
+        compare("sortBooks by title (merge)", n, n,
+                () -> {
+                    MyArrayList<Book> list = new MyArrayList<>(unsorted);
+                    list.sort(Comparator.comparing(Book::getTitle));
+                    return list.get(0).getId();
+                },
+                () -> {
+                    ArrayList<Book> list = new ArrayList<>(jdkUnsorted);
+                    list.sort(Comparator.comparing(Book::getTitle));
+                    return list.get(0).getId();
+                });
+        ParallelCatalog parallel = new ParallelCatalog(
+                Runtime.getRuntime().availableProcessors(), ParallelCatalog.DEFAULT_CUTOFF);
+        compare("sortBooks by title (fork/join)", n, n,
+                () -> {
+                    MyArrayList<Book> list = new MyArrayList<>(unsorted);
+                    parallel.sort(list, Comparator.comparing(Book::getTitle));
+                    return list.get(0).getId();
+                },
+                () -> {
+                    Book[] array = books.clone();
+                    Arrays.parallelSort(array, Comparator.comparing(Book::getTitle));
+                    return array[0].getId();
+                });
+        compare("title scan (fork/join)", n, n,
+                () -> parallel.filterIndexes(n, i -> unsorted.get(i).getTitle().contains("data 1")).size(),
+                () -> jdkUnsorted.parallelStream().filter(book -> book.getTitle().contains("data 1")).count());
+        parallel.shutdown();
+        compare("sortBooks by price (radix)", n, n,
+                () -> {
+                    MyArrayList<Book> list = new MyArrayList<>(unsorted);
+                    list.sortByLongKey(Book::getPriceCents);
+                    return list.get(0).getId();
+                },
+                () -> {
+                    ArrayList<Book> list = new ArrayList<>(jdkUnsorted);
+                    list.sort(Comparator.comparingLong(Book::getPriceCents));
+                    return list.get(0).getId();
+                });
+
+        // Price scans over the primitive columns against the same scan over Book objects
+        BookColumns columns = new BookColumns();
+        for (Book book : books) {
+            columns.add(book);
+        }
+        compare("price range filter (columns)", n, n,
+                () -> columns.filterByPrice(2_000, 4_000).size(),
+                () -> {
+                    long found = 0;
+                    for (Book book : jdkUnsorted) {
+                        if (book.getPriceCents() >= 2_000 && book.getPriceCents() <= 4_000) {
+                            found++;
+                        }
+                    }
+                    return found;
+                });
+
+        // Narrow range and top-K through the skip list against a full column scan
+        BookPriceIndex priceIndex = new BookPriceIndex(columns);
+        priceIndex.update();
+        compare("narrow price range (index)", n, 1,
+                () -> priceIndex.findInRange(5_000, 5_050).size(),
+                () -> columns.filterByPrice(5_000, 5_050).size());
+        single("10 most expensive (index)", n, 1, () -> priceIndex.mostExpensive(10).size());
+
+        BookColumns.Cursor cursor = columns.cursor();
+        compare("price sum (column cursor)", n, n,
+                () -> {
+                    long total = 0;
+                    for (int row = 0; row < n; row++) {
+                        total += cursor.moveTo(row).getPriceCents();
+                    }
+                    return total;
+                },
+                () -> {
+                    long total = 0;
+                    for (Book book : jdkUnsorted) {
+                        total += book.getPriceCents();
+                    }
+                    return total;
+                });
+
+        // Listing the catalog: the shared renderer against println of each Book.toString
+        ListingRenderer renderer = new ListingRenderer(
+                new PrintWriter(new BufferedWriter(Writer.nullWriter(), 1 << 16)), 0, () -> true);
+        PrintStream printStream = new PrintStream(OutputStream.nullOutputStream(), true);
+        compare("render book listing", n, n,
+                () -> {
+                    renderer.begin();
+                    for (Book book : books) {
+                        renderer.nextEntry();
+                        renderer.book("", book);
+                    }
+                    renderer.end();
+                    return n;
+                },
+                () -> {
+                    for (Book book : books) {
+                        printStream.println(book);
+                    }
+                    return n;
+                });
+
+        // Warm path: switching between two cached views is a copy, not a sort
+        system.sortCatalog(BookstoreSystem.SORT_BY_ID);
+        system.sortCatalog(BookstoreSystem.SORT_BY_PRICE);
+        single("sortBooks cached view switch", n, 2, () -> {
+            system.sortCatalog(BookstoreSystem.SORT_BY_ID);
+            system.sortCatalog(BookstoreSystem.SORT_BY_PRICE);
+            return 1;
+        });
+    }
+
+    // Order.calculateTotal over orders of ITEMS_PER_ORDER lines
+    private static void benchmarkOrders(Book[] books) {
+        int orderCount = Math.max(1, Math.min(books.length / ITEMS_PER_ORDER, 100_000));
+        Order[] orders = new Order[orderCount];
+        Random random = new Random(11);
+        for (int i = 0; i < orderCount; i++) {
+            orders[i] = new Order(i, "Customer " + i, "Address " + i);
+            for (int j = 0; j < ITEMS_PER_ORDER; j++) {
+                orders[i].addBook(books[random.nextInt(books.length)], 1 + random.nextInt(3));
+            }
+        }
+
+        // Cached cent totals against re-walking the items with double prices
+        compare("order totals (cached cents)", books.length, orderCount,
+                () -> {
+                    long total = 0;
+                    for (Order order : orders) {
+                        total += order.getTotalCents();
+                    }
+                    return total;
+                },
+                () -> {
+                    double total = 0;
+                    for (Order order : orders) {
+                        MyArrayList<OrderItem> items = order.getItems();
+                        for (int i = 0; i < items.size(); i++) {
+                            total += items.get(i).getBook().getPrice() * items.get(i).getQuantity();
+                        }
+                    }
+                    return (long) total;
+                });
+
+        single("SalesAnalytics.record", books.length, orderCount, () -> {
+            SalesAnalytics sales = new SalesAnalytics();
+            for (Order order : orders) {
+                sales.record(order);
+            }
+            return sales.getRevenueCents();
+        });
+
+        // Cost of instrumenting a hot path: one histogram record and one counter bump per order
+        Metrics metrics = new Metrics();
+        Metrics.LatencyHistogram latency = metrics.histogram("benchmark_seconds", "Benchmark latency");
+        Metrics.Counter counter = metrics.counter("benchmark_total", "Benchmark count");
+        single("metrics record (histogram+counter)", books.length, orderCount, () -> {
+            long sum = 0;
+            for (Order order : orders) {
+                latency.record(order.getTotalCents());
+                counter.increment();
+                sum += order.getId();
             }
+            return sum;
+        });
 
-        } while (choice != 9);
+        // Varint codec into one buffer against DataOutputStream's fixed-width ints and writeUTF
+        HashMap<Integer, Book> byId = new HashMap<>();
+        for (Book book : books) {
+            byId.put(book.getId(), book);
+        }
+        compare("order codec round trip", books.length, orderCount,
+                () -> {
+                    int size = 0;
+                    for (Order order : orders) {
+                        size += RecordCodec.orderSize(order);
+                    }
+                    ByteBuffer buffer = ByteBuffer.allocate(size);
+                    for (Order order : orders) {
+                        RecordCodec.putOrder(buffer, order);
+                    }
+                    buffer.flip();
+                    long sum = size;
+                    while (buffer.hasRemaining()) {
+                        sum += RecordCodec.getOrder(buffer, byId::get).getItems().size();
+                    }
+                    return sum;
+                },
+                () -> {
+                    try {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        DataOutputStream out = new DataOutputStream(bytes);
+                        for (Order order : orders) {
+                            MyArrayList<OrderItem> items = order.getItems();
+                            out.writeInt(order.getId());
+                            out.writeUTF(order.getCustomerName());
+                            out.writeUTF(order.getAddress());
+                            out.writeInt(items.size());
+                            for (int i = 0; i < items.size(); i++) {
+                                out.writeInt(items.get(i).getBook().getId());
+                                out.writeInt(items.get(i).getQuantity());
+                            }
+                        }
+                        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+                        long sum = bytes.size();
+                        for (int n = 0; n < orders.length; n++) {
+                            Order order = new Order(in.readInt(), in.readUTF(), in.readUTF());
+                            int itemCount = in.readInt();
+                            for (int i = 0; i < itemCount; i++) {
+                                order.addBook(byId.get(in.readInt()), in.readInt());
+                            }
+                            sum += order.getItems().size();
+                        }
+                        return sum;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
     }
 
-    // Display all books
-    private void displayBooks() {
-        System.out.println("\n===== BOOK LIST =====");
-        if (bookList.isEmpty()) {
-            System.out.println("No books available.");
-            return;
+    private static long drain(QueueADT<Book> queue, Book[] books) {
+        for (Book book : books) {
+            queue.enqueue(book);
+        }
+        long sum = 0;
+        while (!queue.isEmpty()) {
+            sum += queue.dequeue().getId();
         }
+        return sum;
+    }
 
-        for (int i = 0; i < bookList.size(); i++) {
-            System.out.println(bookList.get(i));
+    private static long drain(StackADT<Book> stack, Book[] books) {
+        for (Book book : books) {
+            stack.push(book);
+        }
+        long sum = 0;
+        while (!stack.isEmpty()) {
+            sum += stack.pop().getId();
         }
+        return sum;
     }
 
-    // Add a new book
-    private void addNewBook() {
-        System.out.println("\n===== ADD NEW BOOK =====");
+    // Measure a custom body and its JDK counterpart, then print both
+    private static void compare(String name, int size, long opsPerCall, Body custom, Body jdk) {
+        if (!name.contains(filter)) {
+            return;
+        }
+        double customNanos = measure(custom, opsPerCall);
+        double jdkNanos = measure(jdk, opsPerCall);
+        report(name, size, opsPerCall, customNanos, jdkNanos);
+    }
 
-        System.out.print("Enter book ID: ");
-        int id = 0;
-        try {
-            id = Integer.parseInt(input.nextLine());
-        } catch (NumberFormatException e) {
-            System.out.println("Invalid ID format. Operation cancelled.");
+    // Measure a body that has no JDK counterpart
+    private static void single(String name, int size, long opsPerCall, Body body) {
+        if (!name.contains(filter)) {
             return;
         }
+        report(name, size, opsPerCall, measure(body, opsPerCall), Double.NaN);
+    }
 
-        // Check if ID already exists
-        for (int i = 0; i < bookList.size(); i++) {
-            if (bookList.get(i).getId() == id) {
-                System.out.println("A book with this ID already exists!");
-                return;
+    // Median nanoseconds per operation over the measured rounds
+    private static double measure(Body body, long opsPerCall) {
+        double[] results = new double[MEASURED_ROUNDS];
+        for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+            long calls = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                sink += body.run();
+                calls++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < MIN_ROUND_NANOS);
+
+            if (round >= 0) {
+                results[round] = (double) elapsed / (calls * opsPerCall);
             }
         }
 
-        System.out.print("Enter title: ");
-        String title = input.nextLine();
+        Arrays.sort(results);
+        return results[MEASURED_ROUNDS / 2];
+    }
 
-        System.out.print("Enter author: ");
-        String author = input.nextLine();
+    private static void report(String name, int size, long opsPerCall, double customNanos, double jdkNanos) {
+        if (Double.isNaN(jdkNanos)) {
+            System.out.printf("%-34s %10d %14.2f %14s %9s%n", name, size, customNanos, "-", "-");
+        } else {
+            System.out.printf("%-34s %10d %14.2f %14.2f %8.2fx%n",
+                    name, size, customNanos, jdkNanos, jdkNanos / customNanos);
+        }
+    }
 
-        System.out.print("Enter price: $");
-        double price = 0;
-        try {
-            price = Double.parseDouble(input.nextLine());
-            if (price <= 0) {
-                System.out.println("Price must be positive. Operation cancelled.");
-                return;
-            }
-        } catch (NumberFormatException e) {
-            System.out.println("Invalid price format. Operation cancelled.");
-            return;
+    // Books with unique IDs, titles built from a small vocabulary, and prices in cents
+    private static Book[] generateBooks(int count, Random random) {
+        Book[] books = new Book[count];
+        for (int i = 0; i < count; i++) {
+            String title = WORDS[random.nextInt(WORDS.length)] + " " +
+                    WORDS[random.nextInt(WORDS.length)] + " " + random.nextInt(1000);
+            String author = "Author " + random.nextInt(Math.max(1, count / 10));
+            double price = (100 + random.nextInt(10_000)) / 100.0;
+            books[i] = new Book(1_000 + i, title, author, price);
         }
 
-        Book newBook = new Book(id, title, author, price);
-        bookList.add(newBook);
-        System.out.println("Book added successfully!");
+        // Shuffle so ID order isn't insertion order
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            Book temp = books[i];
+            books[i] = books[j];
+            books[j] = temp;
+        }
+        return books;
     }
+}
 
-    // Search for a book
-    private void searchBook() {
-        System.out.println("\n===== SEARCH BOOK =====");
-        System.out.println("1. Search by ID");
-        System.out.println("2. Search by Title");
-        System.out.print("Enter your choice: ");
+// Self-checking round trips for the binary formats and recovery of the files built on them:
+// RecordCodec varints, strings, books and orders (malformed input included), conversion of
+// version 1 order logs, and recovery of the order log and the processed-order archive from disk.
+//
+// Kept in this file so it can use the package-private classes above; build and run:
+//   javac -Xlint:all -d out BookstoreApp.java
+//   java -cp out BookstoreRoundTripCheck
+// Prints one line per failed check and a summary, and exits with status 1 if any check failed.
+class BookstoreRoundTripCheck {
+    private static final Map<Integer, Book> books = new HashMap<>();
+    private static int checks;
+    private static int failures;
 
-        int choice = 0;
+    public static void main(String[] args) throws IOException {
+        for (int id = 1; id <= 20; id++) {
+            books.put(id, Book.ofCents(id, "Title " + id, "Author " + (id % 4), 100 + id * 37L));
+        }
+
+        Path root = Files.createTempDirectory("bookstore-check");
         try {
-            choice = Integer.parseInt(input.nextLine());
-        } catch (NumberFormatException e) {
-            System.out.println("Invalid choice. Search cancelled.");
-            return;
+            run("varints", BookstoreRoundTripCheck::checkVarInts);
+            run("strings", BookstoreRoundTripCheck::checkStrings);
+            run("books", BookstoreRoundTripCheck::checkBooks);
+            run("orders", BookstoreRoundTripCheck::checkOrders);
+            run("malformed input", BookstoreRoundTripCheck::checkMalformed);
+            run("order log recovery", () -> checkLogRecovery(root.resolve("wal")));
+            run("order log torn tail", () -> checkTornTail(root.resolve("torn")));
+            run("order log archive mark", () -> checkArchiveMark(root.resolve("mark")));
+            run("order log snapshot", () -> checkSnapshot(root.resolve("snapshot")));
+            run("version 1 order log", () -> checkVersion1Log(root.resolve("v1")));
+            run("archive recovery", () -> checkArchive(root.resolve("archive")));
+            run("archive positions", () -> checkArchivePositions(root.resolve("positions")));
+        } finally {
+            deleteTree(root);
         }
 
-        if (choice == 1) {
-            System.out.print("Enter book ID: ");
-            try {
-                int id = Integer.parseInt(input.nextLine());
-                boolean found = false;
+        System.out.println(checks + " checks, " + failures + " failed");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
 
-                for (int i = 0; i < bookList.size(); i++) {
-                    if (bookList.get(i).getId() == id) {
-                        System.out.println("Book found: " + bookList.get(i));
-                        found = true;
-                        break;
-                    }
-                }
+    // One group of checks, failing the group if it throws
+    private interface Group {
+        void run() throws IOException;
+    }
 
-                if (!found) {
-                    System.out.println("No book found with ID: " + id);
-                }
+    private static void run(String name, Group group) {
+        int before = failures;
+        try {
+            group.run();
+        } catch (IOException | RuntimeException e) {
+            fail(name + ": threw " + e);
+        }
+        System.out.println((failures == before ? "ok   " : "FAIL ") + name);
+    }
 
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid ID format.");
+    // Varints at every 7-bit boundary, in both directions; negative ints take the full five bytes
+    private static void checkVarInts() {
+        int[] ints = {0, 1, 127, 128, 16_383, 16_384, (1 << 21) - 1, 1 << 21, (1 << 28) - 1, 1 << 28,
+                Integer.MAX_VALUE, -1, -128, Integer.MIN_VALUE};
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int value : ints) {
+            buffer.clear();
+            RecordCodec.putVarInt(buffer, value);
+            int written = buffer.position();
+            expect("varint size of " + value, RecordCodec.varIntSize(value), written);
+            if (value < 0) {
+                expect("negative varint width of " + value, 5, written);
             }
-        } else if (choice == 2) {
-            System.out.print("Enter title (or part of title): ");
-            String title = input.nextLine().toLowerCase();
-            boolean found = false;
+            buffer.flip();
+            expect("varint " + value, value, RecordCodec.getVarInt(buffer));
+            expect("varint bytes read for " + value, written, buffer.position());
+        }
 
-            for (int i = 0; i < bookList.size(); i++) {
-                if (bookList.get(i).getTitle().toLowerCase().contains(title)) {
-                    System.out.println("Book found: " + bookList.get(i));
-                    found = true;
-                }
+        long[] longs = {0, 127, 128, (1L << 35) - 1, 1L << 35, (1L << 56) - 1, 1L << 56, (1L << 63) - 1,
+                -1, Long.MIN_VALUE};
+        for (long value : longs) {
+            buffer.clear();
+            RecordCodec.putVarLong(buffer, value);
+            int written = buffer.position();
+            expect("varlong size of " + value, RecordCodec.varLongSize(value), written);
+            if (value < 0) {
+                expect("negative varlong width of " + value, 10, written);
             }
+            buffer.flip();
+            expect("varlong " + value, value, RecordCodec.getVarLong(buffer));
+        }
 
-            if (!found) {
-                System.out.println("No books found with title containing: " + title);
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            int value = random.nextInt() >>> random.nextInt(32);
+            buffer.clear();
+            RecordCodec.putVarInt(buffer, value);
+            buffer.flip();
+            if (RecordCodec.getVarInt(buffer) != value) {
+                fail("random varint " + value);
+                return;
             }
-        } else {
-            System.out.println("Invalid choice.");
         }
     }
 
-    // Sort books
-    private void sortBooks() {
-        System.out.println("\n===== SORT BOOKS =====");
-        System.out.println("1. Sort by ID");
-        System.out.println("2. Sort by Title");
-        System.out.println("3. Sort by Price");
-        System.out.print("Enter your choice: ");
-
-        int choice = 0;
-        try {
-            choice = Integer.parseInt(input.nextLine());
-        } catch (NumberFormatException e) {
-            System.out.println("Invalid choice. Sort cancelled.");
-            return;
-        }
+    // UTF-8 strings: every encoded length, surrogate pairs, and unpaired surrogates written as '?'
+    // exactly as String.getBytes does
+    private static void checkStrings() {
+        String[] values = {
+            "", "plain ascii", "\u00DCber Gr\u00FC\u00DFe", "\u20AC 12", "\u65E5\u672C\u8A9E\u306E\u672C", "clef \uD834\uDD1E", "emoji \uD83D\uDCDA\uD83D\uDCD6",
+            "\uD83D\uDCDA", "lone high \uD800 here", "lone low \uDC00 here", "ends high \uD83D", "\uDC00\uD800 reversed",
+            "mixed a\u00E9\u20AC\uD83D\uDE00z"
+        };
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        for (String value : values) {
+            byte[] expected = value.getBytes(StandardCharsets.UTF_8);
+            buffer.clear();
+            RecordCodec.putString(buffer, value);
+            expect("string size of \"" + value + "\"", RecordCodec.stringSize(value), buffer.position());
 
-        if (choice == 1) {
-            // Sort by ID
-            for (int i = 0; i < bookList.size() - 1; i++) {
-                for (int j = 0; j < bookList.size() - i - 1; j++) {
-                    if (bookList.get(j).getId() > bookList.get(j + 1).getId()) {
-                        // Swap
-                        Book temp = bookList.get(j);
-                        bookList.set(j, bookList.get(j + 1));
-                        bookList.set(j + 1, temp);
-                    }
-                }
-            }
-            System.out.println("Books sorted by ID.");
-        } else if (choice == 2) {
-            // Sort by Title
-            for (int i = 0; i < bookList.size() - 1; i++) {
-                for (int j = 0; j < bookList.size() - i - 1; j++) {
-                    if (bookList.get(j).getTitle().compareTo(bookList.get(j + 1).getTitle()) > 0) {
-                        // Swap
-                        Book temp = bookList.get(j);
-                        bookList.set(j, bookList.get(j + 1));
-                        bookList.set(j + 1, temp);
-                    }
-                }
-            }
-            System.out.println("Books sorted by Title.");
-        } else if (choice == 3) {
-            // Sort by Price
-            for (int i = 0; i < bookList.size() - 1; i++) {
-                for (int j = 0; j < bookList.size() - i - 1; j++) {
-                    if (bookList.get(j).getPrice() > bookList.get(j + 1).getPrice()) {
-                        // Swap
-                        Book temp = bookList.get(j);
-                        bookList.set(j, bookList.get(j + 1));
-                        bookList.set(j + 1, temp);
-                    }
-                }
+            buffer.flip();
+            int length = RecordCodec.getVarInt(buffer);
+            byte[] actual = new byte[length];
+            buffer.get(actual);
+            if (!Arrays.equals(expected, actual)) {
+                fail("UTF-8 bytes of \"" + value + "\"");
             }
-            System.out.println("Books sorted by Price.");
-        } else {
-            System.out.println("Invalid choice.");
-            return;
+
+            buffer.rewind();
+            expect("string \"" + value + "\"", new String(expected, StandardCharsets.UTF_8), RecordCodec.getString(buffer));
         }
 
-        displayBooks();
+        // Direct buffers take the copying path in getString
+        ByteBuffer direct = ByteBuffer.allocateDirect(64);
+        RecordCodec.putString(direct, values[5]);
+        direct.flip();
+        expect("string from a direct buffer", values[5], RecordCodec.getString(direct));
     }
 
-    // Place an order
-    private void placeOrder() {
-        System.out.println("\n===== PLACE ORDER =====");
-
-        if (bookList.isEmpty()) {
-            System.out.println("No books available to order.");
-            return;
+    private static void checkBooks() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        Book[] samples = {
+            books.get(1), Book.ofCents(0, "", "", 0), Book.ofCents(Integer.MAX_VALUE, "Gr\u00F6\u00DFe \uD83D\uDCDA", "Zo\u00EB", Long.MAX_VALUE),
+            new Book(101, "Java Programming", "John Smith", 29.99)
+        };
+        for (Book book : samples) {
+            buffer.clear();
+            RecordCodec.putBook(buffer, book);
+            expect("book size of " + book.getId(), RecordCodec.bookSize(book), buffer.position());
+            buffer.flip();
+            Book copy = RecordCodec.getBook(buffer);
+            expect("book id", book.getId(), copy.getId());
+            expect("book title", book.getTitle(), copy.getTitle());
+            expect("book author", book.getAuthor(), copy.getAuthor());
+            expect("book price", book.getPriceCents(), copy.getPriceCents());
         }
+    }
 
-        System.out.print("Enter customer name: ");
-        String customerName = input.nextLine();
+    // Orders keep their express flag and each item's reservation; orders written before items carried
+    // a reservation decode with every item reserved
+    private static void checkOrders() throws IOException {
+        Inventory inventory = stockedInventory();
+        Order order = new Order(1_000_000, "Zo\u00EB \uD83D\uDCDA", "1 Stra\u00DFe", inventory);
+        order.addBook(books.get(1), 2);  // tracked, reserved
+        order.addBook(books.get(15), 1); // untracked
+        order.addBook(books.get(2), 300);
+        order.setExpress(true);
 
-        System.out.print("Enter shipping address: ");
-        String address = input.nextLine();
+        ByteBuffer buffer = ByteBuffer.allocate(RecordCodec.orderSize(order));
+        RecordCodec.putOrder(buffer, order);
+        expect("order size", buffer.capacity(), buffer.position());
+        buffer.flip();
+        expect("peeked order ID", order.getId(), RecordCodec.peekOrderId(buffer));
+        expectSameOrder("order", order, RecordCodec.getOrder(buffer, books::get), true);
 
-        // Create a new order
-        int orderId = (int)(Math.random() * 1000) + 1000; // Simple ID generation
-        Order order = new Order(orderId, customerName, address);
+        StringBuilder visited = new StringBuilder();
+        buffer.rewind();
+        RecordCodec.forEachItem(buffer, (bookId, quantity, reserved) ->
+                visited.append(bookId).append('x').append(quantity).append(reserved ? "r " : " "));
+        expect("items walked", "1x2r 15x1 2x300r ", visited.toString());
 
-        boolean addingBooks = true;
-        while (addingBooks) {
-            displayBooks();
+        buffer.rewind();
+        expect("order with a missing book", null, RecordCodec.getOrder(buffer, id -> id == 15 ? null : books.get(id)));
+        expect("record consumed despite a missing book", buffer.limit(), buffer.position());
 
-            System.out.print("\nEnter book ID to add to order (0 to finish): ");
-            int bookId = 0;
-            try {
-                bookId = Integer.parseInt(input.nextLine());
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid ID format.");
-                continue;
-            }
+        // Flags byte without the reservations bit, items as book ID and quantity only
+        ByteBuffer legacy = ByteBuffer.allocate(64);
+        RecordCodec.putVarInt(legacy, 42);
+        legacy.put((byte) 1);
+        RecordCodec.putString(legacy, "Old");
+        RecordCodec.putString(legacy, "Road");
+        RecordCodec.putVarInt(legacy, 2);
+        RecordCodec.putVarInt(legacy, 3);
+        RecordCodec.putVarInt(legacy, 1);
+        RecordCodec.putVarInt(legacy, 4);
+        RecordCodec.putVarInt(legacy, 5);
+        legacy.flip();
+        Order old = RecordCodec.getOrder(legacy, books::get);
+        expect("legacy order consumed", legacy.limit(), legacy.position());
+        expect("legacy express", true, old.isExpress());
+        expect("legacy items", 2, old.getItems().size());
+        expect("legacy item reserved", true, old.getItems().get(0).isReserved() && old.getItems().get(1).isReserved());
+        expect("legacy quantity", 5, old.getItems().get(1).getQuantity());
+    }
 
-            if (bookId == 0) {
-                addingBooks = false;
-                continue;
-            }
+    private static void checkMalformed() {
+        ByteBuffer tooLong = ByteBuffer.wrap(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1});
+        expectThrows("six-byte varint", () -> RecordCodec.getVarInt(tooLong));
 
-            // Find the book
-            Book selectedBook = null;
-            for (int i = 0; i < bookList.size(); i++) {
-                if (bookList.get(i).getId() == bookId) {
-                    selectedBook = bookList.get(i);
-                    break;
-                }
-            }
+        ByteBuffer overrun = ByteBuffer.allocate(8);
+        RecordCodec.putVarInt(overrun, 100);
+        overrun.put((byte) 'a').flip();
+        expectThrows("string longer than its record", () -> RecordCodec.getString(overrun));
+    }
 
-            if (selectedBook == null) {
-                System.out.println("Book not found!");
-                continue;
-            }
+    // Orders, processing, cancellation, stock and duplicate IDs survive a close and reopen
+    private static void checkLogRecovery(Path directory) throws IOException {
+        Inventory inventory = stockedInventory();
+        Order first = order(inventory, 5000, "First", 1, 2);
+        Order second = order(inventory, 5001, "Second", 2, 1);
+        Order cancelled = order(inventory, 5002, "Cancelled", 3, 1);
+        Order twinA = order(inventory, 7000, "Twin A", 4, 1);
+        Order twinB = order(inventory, 7000, "Twin B", 15, 1);
+        Order unreserved = order(inventory, 5003, "Unreserved", 16, 3); // book 16 is stocked only afterwards
+        second.setExpress(true);
 
-            System.out.print("Enter quantity: ");
-            int quantity = 0;
-            try {
-                quantity = Integer.parseInt(input.nextLine());
-                if (quantity <= 0) {
-                    System.out.println("Quantity must be positive.");
-                    continue;
-                }
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid quantity format.");
-                continue;
+        try (OrderLog log = OrderLog.open(directory, books::get)) {
+            long lsn = log.logStock(1, 10);
+            lsn = Math.max(lsn, log.logStock(2, 5));
+            for (Order order : new Order[] {first, second, cancelled, twinA, twinB, unreserved}) {
+                lsn = log.logEnqueue(order);
             }
+            log.logStock(16, 7);
+            log.logProcessed(unreserved);
+            log.logProcessed(first);
+            log.logCancelled(cancelled);
+            lsn = log.logProcessed(twinA); // the older of the two orders with ID 7000
+            log.awaitDurable(lsn);
+        }
 
-            order.addBook(selectedBook, quantity);
-            System.out.println(selectedBook.getTitle() + " added to order.");
+        try (OrderLog log = OrderLog.open(directory, books::get)) {
+            MyArrayList<Order> pending = log.getRecoveredPending();
+            expect("pending orders", 2, pending.size());
+            expectSameOrder("pending order", second, pending.get(0), true);
+            expectSameOrder("pending twin", twinB, pending.get(1), true);
+            expect("pending status", "Pending", pending.get(0).getStatus());
+
+            MyArrayList<Order> processed = log.getRecoveredProcessed();
+            expect("processed orders", 3, processed.size());
+            expectSameOrder("processed order", first, processed.get(1), false);
+            expectSameOrder("processed twin", twinA, processed.get(2), false);
+            expect("processed status", "Processed", processed.get(1).getStatus());
+            expect("processed count", 3, log.getProcessedCount());
+
+            // Only reserved copies of processed orders leave the stock
+            expect("stock of book 1", 8L, stockOf(log, 1));
+            expect("stock of book 2", 5L, stockOf(log, 2));
+            expect("stock of a book ordered while untracked", 7L, stockOf(log, 16));
         }
+    }
 
-        if (order.getItems().isEmpty()) {
-            System.out.println("Order cancelled - no books selected.");
-            return;
+    // A record cut off mid-write is dropped and truncated away; everything before it survives
+    private static void checkTornTail(Path directory) throws IOException {
+        Order kept = order(null, 1, "Kept", 1, 1);
+        try (OrderLog log = OrderLog.open(directory, books::get)) {
+            log.awaitDurable(log.logEnqueue(kept));
         }
+        Path segment = lastSegment(directory);
+        long intact = Files.size(segment);
 
-        // Add order to queue
-        orderQueue.enqueue(order);
-        System.out.println("Order placed successfully!");
-        System.out.println("Order ID: " + order.getId());
-        System.out.println("Items:");
+        // A record cut short, then one whose length field is garbage near Integer.MAX_VALUE
+        byte[][] tails = {{0, 0, 0, 40, OrderLog.ENQUEUE, 1, 2},
+                {0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, OrderLog.ENQUEUE, 1, 2}};
+        for (byte[] tail : tails) {
+            String name = "length " + ByteBuffer.wrap(tail).getInt();
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+                channel.write(ByteBuffer.wrap(tail));
+            }
 
-        for (int i = 0; i < order.getItems().size(); i++) {
-            OrderItem item = order.getItems().get(i);
-            System.out.println("- " + item.getBook().getTitle() +
-                    " x" + item.getQuantity() +
-                    " ($" + item.getBook().getPrice() * item.getQuantity() + ")");
+            try (OrderLog log = OrderLog.open(directory, books::get)) {
+                expect("orders before a torn record, " + name, 1, log.getRecoveredPending().size());
+                expectSameOrder("order before a torn record, " + name, kept, log.getRecoveredPending().get(0), true);
+            }
+            expect("torn record truncated, " + name, intact, Files.size(segment));
         }
-        System.out.println("Total: $" + order.calculateTotal());
     }
 
-    // Process next order in queue
-    private void processNextOrder() {
-        System.out.println("\n===== PROCESS NEXT ORDER =====");
+    // Processed orders below an ARCHIVED mark are dropped by replay, the rest keep their positions
+    private static void checkArchiveMark(Path directory) throws IOException {
+        try (OrderLog log = OrderLog.open(directory, books::get)) {
+            long lsn = 0;
+            for (int i = 0; i < 6; i++) {
+                Order order = order(null, 100 + i, "Customer " + i, 1 + i, 1);
+                log.logEnqueue(order);
+                lsn = log.logProcessed(order);
+            }
+            lsn = Math.max(lsn, log.logArchived(3, 4));
+            log.awaitDurable(lsn);
+        }
 
-        if (orderQueue.isEmpty()) {
-            System.out.println("No orders to process.");
-            return;
+        try (OrderLog log = OrderLog.open(directory, books::get)) {
+            expect("processed count with a mark", 6, log.getProcessedCount());
+            expect("archived count", 3, log.getArchivedCount());
+            expect("archived through", 4, log.getArchivedThrough());
+            MyArrayList<Order> processed = log.getRecoveredProcessed();
+            expect("processed orders past the mark", 2, processed.size());
+            expect("first order past the mark", 104, processed.get(0).getId());
+            expect("its position", 4, log.getRecoveredPositions().get(0));
+            expect("last position", 5, log.getRecoveredPositions().get(1));
         }
 
-        Order order = orderQueue.dequeue();
-        order.setStatus("Processed");
+        // A mark framed by hand (count, then the position it reaches) moves past the last order
+        try (FileChannel channel = FileChannel.open(lastSegment(directory), StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(frame(OrderLog.ARCHIVED, ByteBuffer.allocate(8).putInt(6).putInt(6).array())));
+        }
+        try (OrderLog log = OrderLog.open(directory, books::get)) {
+            expect("archived count by hand", 6, log.getArchivedCount());
+            expect("archived through by hand", 6, log.getArchivedThrough());
+            expect("no orders past a mark by hand", 0, log.getRecoveredProcessed().size());
+        }
+    }
 
-        System.out.println("Processing Order ID: " + order.getId());
-        System.out.println("Customer: " + order.getCustomerName());
-        System.out.println("Address: " + order.getAddress());
-        System.out.println("Items:");
+    // Enough records to rotate segments twice, so a compaction folds an archive mark into the snapshot
+    private static void checkSnapshot(Path directory) throws IOException {
+        String address = "x".repeat(200);
+        int count = 20_000;
+        try (OrderLog log = OrderLog.open(directory, books::get)) {
+            long lsn = 0;
+            for (int i = 0; i < count; i++) {
+                lsn = log.logEnqueue(order(null, 10_000 + i, "Snapshot", 1 + i % 20, 1 + i % 3, address));
+            }
+            log.awaitDurable(lsn);
+            for (int i = 0; i < count; i++) {
+                lsn = log.logProcessed(new Order(10_000 + i, "", ""));
+            }
+            lsn = log.logArchived(count - 500, count - 500);
+            log.awaitDurable(lsn);
+            for (int i = 0; i < count; i++) {
+                lsn = log.logEnqueue(order(null, 50_000 + i, "Snapshot", 1 + i % 20, 1, address));
+            }
+            log.awaitDurable(lsn);
+        }
+        expect("snapshot written", true, Files.exists(directory.resolve("orders.snapshot")));
 
-        for (int i = 0; i < order.getItems().size(); i++) {
-            OrderItem item = order.getItems().get(i);
-            System.out.println("- " + item.getBook().getTitle() +
-                    " x" + item.getQuantity() +
-                    " ($" + item.getBook().getPrice() * item.getQuantity() + ")");
+        try (OrderLog log = OrderLog.open(directory, books::get)) {
+            expect("pending after compaction", count, log.getRecoveredPending().size());
+            expect("processed after compaction", 500, log.getRecoveredProcessed().size());
+            expect("first processed after compaction", 10_000 + count - 500, log.getRecoveredProcessed().get(0).getId());
+            expect("processed count after compaction", count, log.getProcessedCount());
+            expect("archived through after compaction", count - 500, log.getArchivedThrough());
+            expect("quantity after compaction", 1 + (count - 500) % 3,
+                    log.getRecoveredProcessed().get(0).getItems().get(0).getQuantity());
         }
+    }
 
-        System.out.println("Total: $" + order.calculateTotal());
-        System.out.println("Order processed successfully!");
+    // A version 1 log: fixed-width order payloads in the snapshot (OrderLog.PROCESSED) and in a segment (OrderLog.ENQUEUE),
+    // with and without the trailing flags byte
+    private static void checkVersion1Log(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        ByteBuffer snapshot = ByteBuffer.allocate(4096);
+        snapshot.putInt(OrderLog.SNAPSHOT_MAGIC).putInt(1).putLong(1);
+        snapshot.put(frame(OrderLog.STOCK, ByteBuffer.allocate(12).putInt(1).putLong(20).array()));
+        snapshot.put(frame(OrderLog.PROCESSED, fixedWidthOrder(900, "\u00DCn\u00EFcode \uD83D\uDCDA", "Old Street", true, new int[] {1, 2, 3, 1})));
+        snapshot.flip();
+        write(directory.resolve("orders.snapshot"), snapshot);
+
+        ByteBuffer segment = ByteBuffer.allocate(4096);
+        segment.put(frame(OrderLog.ENQUEUE, fixedWidthOrder(901, "Plain", "Road", false, new int[] {1, 4})));
+        segment.put(frame(OrderLog.ENQUEUE, fixedWidthOrderWithoutFlags(902, "No flags", "Lane", new int[] {2, 1, 5, 2})));
+        segment.put(frame(OrderLog.ENQUEUE, fixedWidthOrder(903, "Gone", "Away", true, new int[] {3, 1})));
+        segment.put(frame(OrderLog.PROCESS, ByteBuffer.allocate(4).putInt(901).array()));
+        segment.put(frame(OrderLog.CANCEL, ByteBuffer.allocate(4).putInt(903).array()));
+        segment.flip();
+        write(directory.resolve(String.format("orders-%010d.wal", 2)), segment);
+
+        try (OrderLog log = OrderLog.open(directory, books::get)) {
+            MyArrayList<Order> processed = log.getRecoveredProcessed();
+            expect("version 1 processed orders", 2, processed.size());
+            Order archived = processed.get(0);
+            expect("version 1 processed ID", 900, archived.getId());
+            expect("version 1 customer", "\u00DCn\u00EFcode \uD83D\uDCDA", archived.getCustomerName());
+            expect("version 1 express", true, archived.isExpress());
+            expect("version 1 items", 2, archived.getItems().size());
+            expect("version 1 quantity", 1, archived.getItems().get(1).getQuantity());
+            expect("version 1 processed from a segment", 901, processed.get(1).getId());
+            expect("version 1 not express", false, processed.get(1).isExpress());
 
-        // Add to processed orders stack
-        processedOrders.push(order);
+            MyArrayList<Order> pending = log.getRecoveredPending();
+            expect("version 1 pending orders", 1, pending.size());
+            expect("version 1 pending ID", 902, pending.get(0).getId());
+            expect("version 1 order without flags", false, pending.get(0).isExpress());
+            expect("version 1 pending quantity", 2, pending.get(0).getItems().get(1).getQuantity());
+            expect("version 1 items count as reserved", true, pending.get(0).getItems().get(0).isReserved());
+
+            // Version 1 took every processed item out of tracked stock
+            expect("version 1 stock", 16L, stockOf(log, 1));
+        }
     }
 
-    // Display order queue
-    private void displayOrderQueue() {
-        System.out.println("\n===== ORDER QUEUE =====");
+    // Spilled orders are found again after a reopen, a torn tail is cut off, and the archive lines up
+    // with the log's count by truncating or reporting the gap
+    private static void checkArchive(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path path = directory.resolve("orders.archive");
+        int[] archived = new int[1];
+        Order[] orders = new Order[20];
+        try (ProcessedOrderHistory history = ProcessedOrderHistory.open(new MyArrayStack<>(), 4, path,
+                books::get, order -> archived[0]++)) {
+            for (int i = 0; i < orders.length; i++) {
+                orders[i] = order(null, 3000 + i, "Archived " + i, 1 + i, 1 + i % 2);
+                history.push(orders[i]);
+            }
+            expect("archived orders", archived[0], history.getArchivedCount());
+            expect("all orders counted", orders.length, history.getTotalCount());
+            expect("window counted alone", orders.length - archived[0], history.size());
+        }
+        int count = archived[0];
 
-        if (orderQueue.isEmpty()) {
-            System.out.println("No orders in queue.");
-            return;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 9, 1}));
         }
+        try (ProcessedOrderHistory history = ProcessedOrderHistory.open(new MyArrayStack<>(), 4, path,
+                books::get, order -> { })) {
+            expect("archived orders after reopen", count, history.getArchivedCount());
+            for (int i = 0; i < count; i++) {
+                Order found = history.findArchived(orders[i].getId());
+                if (found == null) {
+                    fail("archived order " + orders[i].getId() + " not found");
+                } else {
+                    expectSameOrder("archived order", orders[i], found, false);
+                }
+            }
+            expect("order never archived", null, history.findArchived(3000 + orders.length));
 
-        // Create a temporary queue to hold orders while we display them
-        MyQueue<Order> tempQueue = new MyQueue<>();
-        int count = 1;
+            Iterator<Order> newestFirst = history.iterator();
+            for (int i = count - 1; i >= 0; i--) {
+                expect("archive order from the iterator", orders[i].getId(), newestFirst.next().getId());
+            }
+            expect("iterator ends with the archive", false, newestFirst.hasNext());
 
-        while (!orderQueue.isEmpty()) {
-            Order order = orderQueue.dequeue();
-            System.out.println("\nOrder #" + count + ":");
-            System.out.println("ID: " + order.getId());
-            System.out.println("Customer: " + order.getCustomerName());
-            System.out.println("Items:");
+            history.alignArchive(count - 2, 0);
+            expect("archive cut back to the log", count - 2, history.getArchivedCount());
+            expect("no gap reported", null, history.takeFailure());
+            history.alignArchive(count, 0);
+            expect("gap reported", true, history.takeFailure() != null);
+        }
+        try (ProcessedOrderHistory history = ProcessedOrderHistory.open(new MyArrayStack<>(), 4, path,
+                books::get, order -> { })) {
+            expect("truncation is on disk", count - 2, history.getArchivedCount());
+        }
+    }
 
-            for (int i = 0; i < order.getItems().size(); i++) {
-                OrderItem item = order.getItems().get(i);
-                System.out.println("- " + item.getBook().getTitle() +
-                        " x" + item.getQuantity() +
-                        " ($" + item.getBook().getPrice() * item.getQuantity() + ")");
+    // Restored orders keep their log positions, gaps from skipped orders included, and the archive
+    // mark follows the positions of the orders spilled
+    private static void checkArchivePositions(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        try (ProcessedOrderHistory history = ProcessedOrderHistory.open(new MyArrayStack<>(), 4,
+                directory.resolve("orders.archive"), books::get, order -> { })) {
+            int[] gapped = {0, 1, 3, 4, 6, 7, 8};
+            MyArrayList<Order> processed = new MyArrayList<>();
+            MyIntList positions = new MyIntList();
+            for (int position : gapped) {
+                processed.add(order(null, 4000 + position, "Positioned", 1, 1));
+                positions.add(position);
             }
-            System.out.println("Status: " + order.getStatus());
-            System.out.println("Total: $" + order.calculateTotal());
+            history.restore(processed, positions, 9);
+            expect("archived while restoring", 3, history.getArchivedCount());
+            expect("mark past the last spilled position", 4, history.getArchivedThrough());
+
+            history.push(order(null, 4009, "Next", 1, 1));
+            history.push(order(null, 4010, "Next", 1, 1));
+            history.push(order(null, 4011, "Next", 1, 1));
+            expect("archived after new orders", 6, history.getArchivedCount());
+            expect("mark after new orders", 8, history.getArchivedThrough());
 
-            tempQueue.enqueue(order);
-            count++;
+            // Popped orders take their positions with them, the next spill ends at position 12
+            expect("popped order", 4011, history.pop().getId());
+            expect("popped order", 4010, history.pop().getId());
+            history.push(order(null, 4012, "Next", 1, 1));
+            history.push(order(null, 4013, "Next", 1, 1));
+            history.push(order(null, 4014, "Next", 1, 1));
+            expect("archived after pops", 9, history.getArchivedCount());
+            expect("mark after pops", 13, history.getArchivedThrough());
+            expect("window after pops", 2, history.size());
+            expect("total after pops", 11, history.getTotalCount());
         }
+    }
 
-        // Restore the original queue
-        while (!tempQueue.isEmpty()) {
-            orderQueue.enqueue(tempQueue.dequeue());
+    // Books 1 to 10 are stocked, the rest are untracked
+    private static Inventory stockedInventory() throws IOException {
+        Inventory inventory = new Inventory();
+        for (int id = 1; id <= 10; id++) {
+            inventory.addStock(id, 1000, null);
         }
+        return inventory;
     }
 
-    // Display processed orders
-    private void displayProcessedOrders() {
-        System.out.println("\n===== PROCESSED ORDERS =====");
+    private static Order order(Inventory inventory, int id, String customer, int bookId, int quantity) {
+        return order(inventory, id, customer, bookId, quantity, "Address " + id);
+    }
 
-        if (processedOrders.isEmpty()) {
-            System.out.println("No processed orders.");
-            return;
+    private static Order order(Inventory inventory, int id, String customer, int bookId, int quantity, String address) {
+        Order order = new Order(id, customer, address, inventory);
+        order.addBook(books.get(bookId), quantity);
+        return order;
+    }
+
+    private static long stockOf(OrderLog log, int bookId) {
+        MyArrayList<long[]> stock = log.getRecoveredStock();
+        for (int i = 0; i < stock.size(); i++) {
+            if (stock.get(i)[0] == bookId) {
+                return stock.get(i)[1];
+            }
         }
+        return -1;
+    }
 
-        // Create a temporary stack to hold orders while we display them
-        MyStack<Order> tempStack = new MyStack<>();
-        int count = 1;
+    // Version 1 order payload: fixed-width ints, int-length-prefixed strings, then a flags byte
+    private static byte[] fixedWidthOrder(int id, String customer, String address, boolean express, int[] items) {
+        byte[] body = fixedWidthOrderWithoutFlags(id, customer, address, items);
+        byte[] withFlags = Arrays.copyOf(body, body.length + 1);
+        withFlags[body.length] = (byte) (express ? 1 : 0);
+        return withFlags;
+    }
+
+    // Items are {book ID, quantity} pairs
+    private static byte[] fixedWidthOrderWithoutFlags(int id, String customer, String address, int[] items) {
+        byte[] customerBytes = customer.getBytes(StandardCharsets.UTF_8);
+        byte[] addressBytes = address.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(16 + customerBytes.length + addressBytes.length + items.length * 4);
+        out.putInt(id);
+        out.putInt(customerBytes.length).put(customerBytes);
+        out.putInt(addressBytes.length).put(addressBytes);
+        out.putInt(items.length / 2);
+        for (int item : items) {
+            out.putInt(item);
+        }
+        return out.array();
+    }
 
-        while (!processedOrders.isEmpty()) {
-            Order order = processedOrders.pop();
-            System.out.println("\nOrder #" + count + ":");
-            System.out.println("ID: " + order.getId());
-            System.out.println("Customer: " + order.getCustomerName());
-            System.out.println("Items:");
+    // Order log frame: length, type + payload, CRC32 of type + payload
+    private static byte[] frame(byte type, byte[] payload) {
+        ByteBuffer framed = ByteBuffer.allocate(9 + payload.length);
+        framed.putInt(payload.length + 1).put(type).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(framed.array(), 4, payload.length + 1);
+        framed.putInt((int) crc.getValue());
+        return framed.array();
+    }
 
-            for (int i = 0; i < order.getItems().size(); i++) {
-                OrderItem item = order.getItems().get(i);
-                System.out.println("- " + item.getBook().getTitle() +
-                        " x" + item.getQuantity() +
-                        " ($" + item.getBook().getPrice() * item.getQuantity() + ")");
+    private static void write(Path path, ByteBuffer data) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
             }
-            System.out.println("Status: " + order.getStatus());
-            System.out.println("Total: $" + order.calculateTotal());
+        }
+    }
 
-            tempStack.push(order);
-            count++;
+    private static Path lastSegment(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".wal"))
+                    .filter(path -> path.toFile().length() > 0)
+                    .max(Comparator.naturalOrder())
+                    .orElseThrow(() -> new IOException("no segment in " + directory));
         }
+    }
 
-        // Restore the original stack
-        while (!tempStack.isEmpty()) {
-            processedOrders.push(tempStack.pop());
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
         }
     }
-}
 
+    // Same ID, customer, address, express flag and items; reservations only when asked, processed
+    // orders give theirs up
+    private static void expectSameOrder(String name, Order expected, Order actual, boolean reservations) {
+        if (actual == null) {
+            fail(name + ": missing");
+            return;
+        }
+        expect(name + " ID", expected.getId(), actual.getId());
+        expect(name + " customer", expected.getCustomerName(), actual.getCustomerName());
+        expect(name + " address", expected.getAddress(), actual.getAddress());
+        expect(name + " express", expected.isExpress(), actual.isExpress());
+        expect(name + " item count", expected.getItems().size(), actual.getItems().size());
+        for (int i = 0; i < Math.min(expected.getItems().size(), actual.getItems().size()); i++) {
+            OrderItem want = expected.getItems().get(i);
+            OrderItem got = actual.getItems().get(i);
+            expect(name + " item book", want.getBook().getId(), got.getBook().getId());
+            expect(name + " item quantity", want.getQuantity(), got.getQuantity());
+            if (reservations) {
+                expect(name + " item reserved", want.isReserved(), got.isReserved());
+            }
+        }
+        expect(name + " total", expected.getTotalCents(), actual.getTotalCents());
+    }
+
+    private static void expect(String name, Object expected, Object actual) {
+        checks++;
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            fail(name + ": expected " + expected + ", got " + actual);
+        }
+    }
 
-// Main Application Class
-public class BookstoreApp {
-    public static void main(String[] args) {
-        BookstoreSystem system = new BookstoreSystem();
-        system.runMenu();
+    private static void expectThrows(String name, Runnable body) {
+        checks++;
+        try {
+            body.run();
+            fail(name + ": no exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println("  " + message);
     }
-}
\ No newline at end of file
+}